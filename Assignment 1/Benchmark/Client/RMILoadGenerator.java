@@ -0,0 +1,104 @@
+package Client;
+
+import Server.Interface.IResourceManager;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Runs the TCP client's LoadGenerator workload against the RMI Middleware, so both
+ * stacks are measured by the same code. Each worker looks up its own stub; the RMI
+ * runtime pools the underlying connections.
+ *
+ * Built by run_transport_benchmark.sh together with the RMI server sources (for
+ * IResourceManager) and the TCP client sources (for LoadGenerator).
+ *
+ * Usage: java Client.RMILoadGenerator host:registryPort[/name] [option=value ...] (see LoadGenerator)
+ */
+public class RMILoadGenerator implements LoadTarget {
+
+    private static final String RMI_PREFIX = "group_10_";
+
+    private final IResourceManager mw;
+
+    public RMILoadGenerator(IResourceManager mw) {
+        this.mw = mw;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator.launch("Client.RMILoadGenerator", args, RMILoadGenerator::connect);
+    }
+
+    // "host:port" or "host:port/name"; the name defaults to the RMI Middleware's
+    private static LoadTarget connect(List<String> endpoints) throws IOException {
+        String ep = endpoints.get(0);
+        String name = "Middleware";
+        int slash = ep.indexOf('/');
+        if (slash >= 0) {
+            name = ep.substring(slash + 1);
+            ep = ep.substring(0, slash);
+        }
+        int colon = ep.lastIndexOf(':');
+        Registry registry = LocateRegistry.getRegistry(ep.substring(0, colon), Integer.parseInt(ep.substring(colon + 1)));
+        try {
+            return new RMILoadGenerator((IResourceManager) registry.lookup(RMI_PREFIX + name));
+        } catch (NotBoundException e) {
+            throw new IOException("No '" + RMI_PREFIX + name + "' in the registry at " + ep);
+        }
+    }
+
+    public boolean addFlight(int flightNum, int flightSeats, int flightPrice) throws IOException {
+        return mw.addFlight(flightNum, flightSeats, flightPrice);
+    }
+
+    public boolean addCars(String location, int numCars, int price) throws IOException {
+        return mw.addCars(location, numCars, price);
+    }
+
+    public boolean addRooms(String location, int numRooms, int price) throws IOException {
+        return mw.addRooms(location, numRooms, price);
+    }
+
+    public int newCustomer() throws IOException {
+        return mw.newCustomer();
+    }
+
+    public boolean deleteCustomer(int customerID) throws IOException {
+        return mw.deleteCustomer(customerID);
+    }
+
+    public int queryFlight(int flightNumber) throws IOException {
+        return mw.queryFlight(flightNumber);
+    }
+
+    public int queryCars(String location) throws IOException {
+        return mw.queryCars(location);
+    }
+
+    public int queryRooms(String location) throws IOException {
+        return mw.queryRooms(location);
+    }
+
+    public boolean reserveFlight(int customerID, int flightNumber) throws IOException {
+        return mw.reserveFlight(customerID, flightNumber);
+    }
+
+    public boolean reserveCar(int customerID, String location) throws IOException {
+        return mw.reserveCar(customerID, location);
+    }
+
+    public boolean reserveRoom(int customerID, String location) throws IOException {
+        return mw.reserveRoom(customerID, location);
+    }
+
+    public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) throws IOException {
+        return mw.bundle(customerID, flightNumbers, location, car, room);
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,88 @@
+#!/usr/bin/env bash
+# Runs the same LoadGenerator workload against the RMI stack and the TCP stack, each with
+# Flights/Cars/Rooms RMs and a Middleware started on localhost, and prints both reports.
+#
+# Usage: ./run_transport_benchmark.sh [rmi|tcp|both] [LoadGenerator options ...]
+#   e.g. ./run_transport_benchmark.sh both threads=16 duration=30 rate=0
+# Reports are also kept in out/report-<stack>.txt; server output goes to out/*.log.
+
+set -euo pipefail
+HERE="$(cd -- "$(dirname -- "${BASH_SOURCE[0]}")" && pwd)"
+ROOT="$(dirname "$HERE")"
+OUT="$HERE/out"
+STACKS="${1:-both}"
+shift || true
+OPTS=("$@")
+[ ${#OPTS[@]} -eq 0 ] && OPTS=(threads=16 duration=30 warmup=5)
+
+RMI_PORT=${RMI_PORT:-3010}
+TCP_BASE=${TCP_BASE:-7100}
+SERVER_JAVA=(java -Dtrace.quiet=true ${JAVA_OPTS:-})
+PIDS=()
+
+stop_servers() {
+  for pid in "${PIDS[@]:-}"; do
+    [ -n "$pid" ] && kill "$pid" 2>/dev/null || true
+  done
+  wait 2>/dev/null || true
+  PIDS=()
+}
+trap stop_servers EXIT
+
+wait_port() {
+  for _ in $(seq 1 50); do
+    (exec 3<>"/dev/tcp/127.0.0.1/$1") 2>/dev/null && return 0
+    sleep 0.2
+  done
+  echo "Nothing listening on port $1" >&2
+  exit 1
+}
+
+rm -rf "$OUT"
+mkdir -p "$OUT/tcp-server" "$OUT/tcp-client" "$OUT/rmi"
+# the checkout path may contain spaces ("Assignment 1")
+sources() { mapfile -d '' SRC < <(find "$1" -name "*.java" -print0); }
+sources "$ROOT/TCP/Server"; javac -nowarn -d "$OUT/tcp-server" "${SRC[@]}"
+sources "$ROOT/TCP/Client"; javac -nowarn -d "$OUT/tcp-client" "${SRC[@]}"
+# the RMI driver reuses the TCP client's workload classes as they are
+sources "$ROOT/RMI/Server"; RMI_SRC=("${SRC[@]}")
+sources "$ROOT/TCP/Client"; javac -nowarn -d "$OUT/rmi" "${RMI_SRC[@]}" "${SRC[@]}" "$HERE/Client/RMILoadGenerator.java"
+
+run_rmi() {
+  echo "=== RMI ==="
+  # the first RM creates the registry on RMI_PORT; the others and the Middleware bind into it
+  for rm in Flights Cars Rooms; do
+    "${SERVER_JAVA[@]}" -cp "$OUT/rmi" Server.RMI.RMIResourceManager "$rm" > "$OUT/rmi-$rm.log" 2>&1 &
+    PIDS+=($!)
+    wait_port "$RMI_PORT"
+    sleep 0.5
+  done
+  "${SERVER_JAVA[@]}" -cp "$OUT/rmi" Server.RMI.RMIMiddleware localhost localhost localhost > "$OUT/rmi-Middleware.log" 2>&1 &
+  PIDS+=($!)
+  sleep 1.5
+  java -cp "$OUT/rmi" Client.RMILoadGenerator "localhost:$RMI_PORT" "${OPTS[@]}" | tee "$OUT/report-rmi.txt"
+  stop_servers
+}
+
+run_tcp() {
+  echo "=== TCP ==="
+  local flights=$((TCP_BASE + 1)) cars=$((TCP_BASE + 2)) rooms=$((TCP_BASE + 3)) mw=$((TCP_BASE + 10))
+  for port in $flights $cars $rooms; do
+    "${SERVER_JAVA[@]}" -cp "$OUT/tcp-server" Server.TCP.TCPResourceManager "rm$port" "$port" > "$OUT/tcp-$port.log" 2>&1 &
+    PIDS+=($!)
+  done
+  for port in $flights $cars $rooms; do wait_port "$port"; done
+  "${SERVER_JAVA[@]}" -cp "$OUT/tcp-server" Server.TCP.TCPMiddleware "$mw" \
+    "localhost:$flights" "localhost:$cars" "localhost:$rooms" > "$OUT/tcp-Middleware.log" 2>&1 &
+  PIDS+=($!)
+  wait_port "$mw"
+  java -cp "$OUT/tcp-client" Client.LoadGenerator "localhost:$mw" "${OPTS[@]}" | grep -v '^Connected to middleware' | tee "$OUT/report-tcp.txt"
+  stop_servers
+}
+
+case "$STACKS" in
+  rmi)  run_rmi ;;
+  tcp)  run_tcp ;;
+  both) run_rmi; run_tcp ;;
+  *)    echo "Usage: $0 [rmi|tcp|both] [LoadGenerator options ...]" >&2; exit 1 ;;
+esac
@@ -394,6 +394,16 @@ public abstract class Client
 				}
 				break;
 			}
+			case Stats: {
+				if (arguments.size() > 2) {
+					checkArgumentsCount(2, arguments.size());
+				}
+				boolean reset = arguments.size() == 2 && toBoolean(arguments.elementAt(1));
+				for (String line : m_resourceManager.stats(reset)) {
+					System.out.println(line);
+				}
+				break;
+			}
 			case Quit:
 				checkArgumentsCount(1, arguments.size());
 
@@ -29,6 +29,8 @@ public enum Command {
 
 	Bundle("Book N flight numbers, and optionally a room and/or car at a location", "<CustomerID>,<FlightNumber1>...<FlightNumberN>,<Location>,<Car-Y/N>,<Room-Y/N>"),
 
+	Stats("Show per-method call counts and latency percentiles of the server", "[<Reset-Y/N>]"),
+
 	Quit("Exit the client application", "");
 
 	String m_description;
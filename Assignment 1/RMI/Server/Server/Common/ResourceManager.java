@@ -375,5 +375,10 @@ public class ResourceManager implements IResourceManager
 	{
 		return m_name;
 	}
+
+	public Vector<String> stats(boolean reset) throws RemoteException
+	{
+		return MethodStats.snapshot(reset);
+	}
 }
  
@@ -0,0 +1,61 @@
+package Server.Common;
+
+import Server.Interface.IResourceManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+// RMI has no dispatch loop of our own to time, so servers export (and the Middleware
+// calls its RMs through) this proxy instead, which records every IResourceManager call
+// in MethodStats under prefix + method name.
+public final class TimedResourceManager implements InvocationHandler
+{
+	private final IResourceManager m_target;
+	private final String m_prefix;
+
+	private TimedResourceManager(IResourceManager target, String prefix)
+	{
+		m_target = target;
+		m_prefix = prefix;
+	}
+
+	public static IResourceManager wrap(IResourceManager target, String prefix)
+	{
+		return (IResourceManager)Proxy.newProxyInstance(IResourceManager.class.getClassLoader(),
+			new Class<?>[] {IResourceManager.class}, new TimedResourceManager(target, prefix));
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		if (method.getDeclaringClass() == Object.class || method.getName().equals("stats"))
+		{
+			return invokeTarget(method, args);
+		}
+		long start = System.nanoTime();
+		boolean ok = false;
+		try
+		{
+			Object result = invokeTarget(method, args);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			MethodStats.record(m_prefix + method.getName(), start, ok);
+		}
+	}
+
+	private Object invokeTarget(Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(m_target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+}
@@ -9,13 +9,18 @@ package Server.Common;
 // of the verbose output from RM, TM, and WC if we want
 public class Trace
 {
+	// Benchmarks turn this off so println doesn't dominate what they measure
+	private static volatile boolean s_verbose = !Boolean.getBoolean("trace.quiet");
+
 	public static void info(String msg)
 	{
-		System.out.println(getThreadID() + " INFO: " + msg);
+		if (s_verbose)
+			System.out.println(getThreadID() + " INFO: " + msg);
 	}
 	public static void warn(String msg)
 	{
-		System.out.println(getThreadID() + " WARN: " + msg);
+		if (s_verbose)
+			System.out.println(getThreadID() + " WARN: " + msg);
 	}
 	public static void error(String msg)
 	{
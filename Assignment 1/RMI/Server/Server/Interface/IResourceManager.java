@@ -210,4 +210,13 @@ public interface IResourceManager extends Remote
         throws RemoteException;
 
     public boolean removeReservation(int customerID, String reserveditemKey, int reserveditemCount) throws RemoteException;
+
+    /**
+     * Per-method call counts and latency percentiles of this server, one line per
+     * method after a line giving the time window; reset starts counting over.
+     *
+     * @return Stats lines
+     */
+    public Vector<String> stats(boolean reset)
+        throws RemoteException;
 }
@@ -35,15 +35,16 @@ public class MiddleWare extends ResourceManager {
 
                      switch(type) {
                          case "Flight":
-                             flightRM = (IResourceManager)registry.lookup(name);
+                             // calls to the RMs are timed as "<RM>/<method>"
+                             flightRM = TimedResourceManager.wrap((IResourceManager)registry.lookup(name), "Flights/");
                              System.out.println("Connected to Flights ResourceManager at " + server);
                              break;
                          case "Car":
-                             carRM = (IResourceManager)registry.lookup(name);
+                             carRM = TimedResourceManager.wrap((IResourceManager)registry.lookup(name), "Cars/");
                              System.out.println("Connected to Cars ResourceManager at " + server);
                              break;
                          case "Room":
-                             roomRM = (IResourceManager)registry.lookup(name);
+                             roomRM = TimedResourceManager.wrap((IResourceManager)registry.lookup(name), "Rooms/");
                              System.out.println("Connected to Rooms ResourceManager at " + server);
                              break;
                          default:
@@ -32,7 +32,8 @@ public class RMIMiddleware extends MiddleWare
             RMIMiddleware middleware = new RMIMiddleware(s_serverName);
             middleware.connectToResourceManagers(flightHost, carHost, roomHost);
 
-            IResourceManager resourceManager = (IResourceManager)UnicastRemoteObject.exportObject(middleware, 0);
+            IResourceManager resourceManager = (IResourceManager)UnicastRemoteObject.exportObject(TimedResourceManager.wrap(middleware, ""), 0);
+            MethodStats.startDump("RMIMiddleware");
 
             // Bind to existing registry
             Registry l_registry = LocateRegistry.getRegistry(3010);
@@ -35,7 +35,9 @@ public class RMIResourceManager extends ResourceManager
 			RMIResourceManager server = new RMIResourceManager(s_serverName);
 
 			// Dynamically generate the stub (client proxy)
-			IResourceManager resourceManager = (IResourceManager)UnicastRemoteObject.exportObject(server, 0);
+			// exported through the timing proxy so every call shows up in stats
+			IResourceManager resourceManager = (IResourceManager)UnicastRemoteObject.exportObject(TimedResourceManager.wrap(server, ""), 0);
+			MethodStats.startDump("RMIResourceManager:" + s_serverName);
 
 			// Bind the remote object's stub in the registry; adjust port if appropriate
 			Registry l_registry;
@@ -167,6 +167,45 @@ public class Client {
                 break;
             }
 
+            case CancelFlight: {
+                checkArgumentsCount(2, arguments.size());
+
+                System.out.println("Cancelling a flight");
+                System.out.println("-Flight Number: " + arguments.elementAt(1));
+
+                int flightNum = toInt(arguments.elementAt(1));
+
+                int refunded = tcp.cancelFlight(flightNum);
+                System.out.println("Refunded " + refunded + " customers");
+                break;
+            }
+
+            case CancelCars: {
+                checkArgumentsCount(2, arguments.size());
+
+                System.out.println("Cancelling all cars at a particular location");
+                System.out.println("-Car Location: " + arguments.elementAt(1));
+
+                String location = arguments.elementAt(1);
+
+                int refunded = tcp.cancelCars(location);
+                System.out.println("Refunded " + refunded + " customers");
+                break;
+            }
+
+            case CancelRooms: {
+                checkArgumentsCount(2, arguments.size());
+
+                System.out.println("Cancelling all rooms at a particular location");
+                System.out.println("-Room Location: " + arguments.elementAt(1));
+
+                String location = arguments.elementAt(1);
+
+                int refunded = tcp.cancelRooms(location);
+                System.out.println("Refunded " + refunded + " customers");
+                break;
+            }
+
             case DeleteCars: {
                 checkArgumentsCount(2, arguments.size());
 
@@ -306,6 +345,73 @@ public class Client {
                 break;
             }
 
+            case QueryRange: {
+                checkArgumentsCount(4, arguments.size());
+
+                System.out.println("Querying " + arguments.elementAt(1) + " by availability and price");
+                System.out.println("-At least available: " + arguments.elementAt(2));
+                System.out.println("-At most price: " + arguments.elementAt(3));
+
+                printItems(tcp.queryRange(arguments.elementAt(1), toInt(arguments.elementAt(2)), toInt(arguments.elementAt(3))));
+                break;
+            }
+
+            case QueryCheapest: {
+                checkArgumentsCount(3, arguments.size());
+
+                System.out.println("Querying the cheapest " + arguments.elementAt(1));
+                System.out.println("-How many: " + arguments.elementAt(2));
+
+                printItems(tcp.queryCheapest(arguments.elementAt(1), toInt(arguments.elementAt(2)), 1));
+                break;
+            }
+
+            case QueryLocations: {
+                checkArgumentsCount(2, arguments.size());
+
+                System.out.println("Querying locations starting with \"" + arguments.elementAt(1) + "\"");
+
+                Vector<String> locations = tcp.queryLocations(arguments.elementAt(1), 20);
+                if (locations.isEmpty()) {
+                    System.out.println("No matching locations");
+                }
+                for (String location : locations) {
+                    System.out.println(location);
+                }
+                break;
+            }
+
+            case SearchBundle: {
+                if (arguments.size() < 6) {
+                    System.err.println((char)27 + "[31;1mCommand exception: " + (char)27 + "[0mSearchBundle command expects at least 5 arguments. Type \"help\" or \"help,<CommandName>\"");
+                    break;
+                }
+
+                System.out.println("Searching for a bundle");
+                Vector<String> legs = new Vector<>();
+                for (int i = 1; i < arguments.size() - 4; ++i) {
+                    System.out.println("-Flight leg: " + arguments.elementAt(i));
+                    legs.addElement(arguments.elementAt(i));
+                }
+                String location = arguments.elementAt(arguments.size()-4);
+                System.out.println("-Location for Car/Room: " + location);
+                System.out.println("-Budget: " + arguments.elementAt(arguments.size()-1));
+
+                Vector<String> found = tcp.searchBundle(legs, location,
+                        toBoolean(arguments.elementAt(arguments.size()-3)),
+                        toBoolean(arguments.elementAt(arguments.size()-2)),
+                        toInt(arguments.elementAt(arguments.size()-1)));
+                if (found.isEmpty()) {
+                    System.out.println("No bundle fits the budget");
+                    break;
+                }
+                for (int i = 1; i + 1 < found.size(); i += 2) {
+                    System.out.println(found.get(i) + " at $" + found.get(i + 1));
+                }
+                System.out.println("Total: $" + found.get(0));
+                break;
+            }
+
             case ReserveFlight: {
                 checkArgumentsCount(3, arguments.size());
 
@@ -360,6 +466,30 @@ public class Client {
                 break;
             }
 
+            case CancelReservation: {
+                if (arguments.size() < 3) {
+                    System.err.println((char)27 + "[31;1mCommand exception: " + (char)27 + "[0mCancelReservation command expects at least 3 arguments. Type \"help\" or \"help,<CommandName>\"");
+                    break;
+                }
+
+                System.out.println("Cancelling reservations");
+                System.out.println("-Customer ID: " + arguments.elementAt(1));
+                Vector<String> keys = new Vector<>();
+                for (int i = 2; i < arguments.size(); ++i) {
+                    System.out.println("-Item: " + arguments.elementAt(i));
+                    keys.addElement(arguments.elementAt(i));
+                }
+
+                int customerID = toInt(arguments.elementAt(1));
+
+                if (tcp.cancelReservations(customerID, keys)) {
+                    System.out.println("Reservations cancelled");
+                } else {
+                    System.out.println("Reservations could not all be cancelled");
+                }
+                break;
+            }
+
             case Bundle: {
                 if (arguments.size() < 6) {
                     System.err.println((char)27 + "[31;1mCommand exception: " + (char)27 + "[0mBundle command expects at least 6 arguments. Type \"help\" or \"help,<CommandName>\"");
@@ -403,6 +533,17 @@ public class Client {
                 break;
             }
 
+            case Stats: {
+                if (arguments.size() > 2) {
+                    checkArgumentsCount(2, arguments.size());
+                }
+                boolean reset = arguments.size() == 2 && toBoolean(arguments.elementAt(1));
+                for (String line : tcp.stats(reset)) {
+                    System.out.println(line);
+                }
+                break;
+            }
+
             case Quit: {
                 checkArgumentsCount(1, arguments.size());
                 System.out.println("Quitting client");
@@ -426,6 +567,16 @@ public class Client {
         }
     }
 
+    // (location, available, price) triples as returned by QueryRange/QueryCheapest
+    private static void printItems(Vector<String> items) {
+        if (items.isEmpty()) {
+            System.out.println("No matching items");
+        }
+        for (int i = 0; i + 2 < items.size(); i += 3) {
+            System.out.println(items.get(i) + ": " + items.get(i + 1) + " available at $" + items.get(i + 2));
+        }
+    }
+
     private static int toInt(String string) {
         return Integer.parseInt(string);
     }
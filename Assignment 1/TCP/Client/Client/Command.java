@@ -13,6 +13,9 @@ public enum Command {
 	DeleteCars("Delete all cars at a location", "<Location>"),
 	DeleteRooms("Delete all rooms at a location", "<Location>"),
 	DeleteCustomer("Delete a customer (and return all reservations)", "<CustomerID>"),
+	CancelFlight("Cancel a flight: refund every customer holding a seat, then delete it", "<FlightNumber>"),
+	CancelCars("Cancel the cars at a location: refund every customer holding one, then delete them", "<Location>"),
+	CancelRooms("Cancel the rooms at a location: refund every customer holding one, then delete them", "<Location>"),
 
 	QueryFlight("Query the number of available seats on a flight number", "<FlightNumber>"),
 	QueryCars("Query the number of available cars at a location", "<Location>"),
@@ -23,12 +26,21 @@ public enum Command {
 	QueryCarsPrice("Query the price per car at a location", "<Location>"),
 	QueryRoomsPrice("Query the price per room at a location", "<Location>"),
 
+	QueryRange("List items with at least N available at or under a price, cheapest first", "<Flights|Cars|Rooms>,<MinAvailable>,<MaxPrice>"),
+	QueryCheapest("List the K cheapest items that are still available", "<Flights|Cars|Rooms>,<K>"),
+	QueryLocations("List locations with cars or rooms whose name starts with a prefix", "<Prefix>"),
+	SearchBundle("Find the cheapest available itinerary within a budget; each leg lists alternative flight numbers", "<Leg1>...<LegN> (e.g. 12|15|20),<Location>,<Car-Y/N>,<Room-Y/N>,<Budget>"),
+
 	ReserveFlight("Reserve a flight number for a customer", "<CustomerID>,<FlightNumber>"),
 	ReserveCar("Reserve a car for a customer at a location", "<CustomerID>,<Location>"),
 	ReserveRoom("Reserve a room for a customer at a location", "<CustomerID>,<Location>"),
 
+	CancelReservation("Give back a customer's reservations of one or more items", "<CustomerID>,<ItemKey1>...<ItemKeyN> (e.g. flight-12, car-montreal)"),
+
 	Bundle("Book N flight numbers, and optionally a room and/or car at a location", "<CustomerID>,<FlightNumber1>...<FlightNumberN>,<Location>,<Car-Y/N>,<Room-Y/N>"),
 
+	Stats("Show per-method call counts and latency percentiles of the Middleware(s)", "[<Reset-Y/N>]"),
+
 	Quit("Exit the client application", "");
 
 	String m_description;
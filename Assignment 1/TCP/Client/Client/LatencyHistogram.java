@@ -0,0 +1,69 @@
+package Client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: values (microseconds)
+ * are bucketed by power of two, and each power of two is split into 64 linear
+ * sub-buckets. That keeps every recorded value within about 1.6% of its bucket, from
+ * a microsecond up to days, in a fixed 3,776 counters. Recording is lock-free, so
+ * all workers of a run can share one histogram per operation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;                 // 128 sub-buckets in the first range
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;         // 64 in every later range
+    private static final int RANGES = 64 - SUB_BITS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + (RANGES - 1) * HALF);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        long v = Math.max(0, micros);
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // retry
+        }
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /** Smallest recorded value v such that at least fraction (0..1) of the values are <= v, to bucket precision. */
+    public long percentile(double fraction) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long v) {
+        int range = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1));
+        int sub = (int) (v >>> range);
+        return range == 0 ? sub : SUB_COUNT + (range - 1) * HALF + (sub - HALF);
+    }
+
+    private static long highestIn(int index) {
+        if (index < SUB_COUNT) return index;
+        int range = (index - SUB_COUNT) / HALF + 1;
+        long sub = (index - SUB_COUNT) % HALF + HALF;
+        return ((sub + 1) << range) - 1;
+    }
+}
@@ -0,0 +1,286 @@
+package Client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for the Middleware (over TCPClient by default). Each worker thread
+ * has its own connection(s) and its own customers, and issues a weighted mix of
+ * queries, reservations, bundles and customer churn (create one, delete the oldest).
+ *
+ * Closed loop (rate=0): each worker sends its next request as soon as the previous
+ * reply arrives. Open loop (rate=N): requests are due at a fixed N per second across
+ * all workers, and latency is measured from when a request was due rather than when
+ * it was sent, so a stalled server shows up as queueing delay instead of silently
+ * lowering the offered load (coordinated omission).
+ *
+ * The workload only talks to a {@link LoadTarget}, so other transports reuse it as is
+ * (see Benchmark/run_transport_benchmark.sh for the RMI vs TCP comparison).
+ *
+ * Usage: java Client.LoadGenerator host:port[,host:port...] [option=value ...]
+ *   threads=16  duration=30  warmup=5  rate=0
+ *   mix=query:60,reserve:25,bundle:5,customer:10
+ *   flights=100  locations=20  customers=10 (per worker)  setup=true (add the inventory first)
+ */
+public class LoadGenerator {
+
+    private static final int STOCK = 1_000_000;
+
+    /** Opens one connection to the system under test; each worker gets its own. */
+    public interface Connector {
+        LoadTarget connect(List<String> endpoints) throws IOException;
+    }
+
+    private final List<String> endpoints;
+    private final Connector connector;
+    private final int threads;
+    private final int duration;
+    private final int warmup;
+    private final int rate;
+    private final int flights;
+    private final int locations;
+    private final int customersPerWorker;
+    private final String[] mixNames;
+    private final int[] mixWeights;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private volatile boolean recording;
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failed = new LongAdder();
+    }
+
+    public LoadGenerator(List<String> endpoints, Connector connector, Map<String, String> opts) {
+        this.endpoints = endpoints;
+        this.connector = connector;
+        this.threads = Integer.parseInt(opts.getOrDefault("threads", "16"));
+        this.duration = Integer.parseInt(opts.getOrDefault("duration", "30"));
+        this.warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        this.rate = Integer.parseInt(opts.getOrDefault("rate", "0"));
+        this.flights = Integer.parseInt(opts.getOrDefault("flights", "100"));
+        this.locations = Integer.parseInt(opts.getOrDefault("locations", "20"));
+        this.customersPerWorker = Integer.parseInt(opts.getOrDefault("customers", "10"));
+        String[] parts = opts.getOrDefault("mix", "query:60,reserve:25,bundle:5,customer:10").split(",");
+        this.mixNames = new String[parts.length];
+        this.mixWeights = new int[parts.length];
+        int sum = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].split(":");
+            mixNames[i] = kv[0].trim();
+            sum += Integer.parseInt(kv[1].trim());
+            mixWeights[i] = sum;
+        }
+        if (sum <= 0) throw new IllegalArgumentException("Operation mix has no weight: " + opts.get("mix"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        launch("Client.LoadGenerator", args, TCPClient::new);
+    }
+
+    /** Parses the command line shared by every transport's entry point and runs the load. */
+    public static void launch(String name, String[] args, Connector connector) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java " + name + " host:port[,host:port...] [threads=16] [duration=30] [warmup=5]"
+                    + " [rate=0] [mix=query:60,reserve:25,bundle:5,customer:10] [flights=100] [locations=20] [customers=10] [setup=true]");
+            System.exit(1);
+        }
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected option=value, got " + args[i]);
+            opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        LoadGenerator gen = new LoadGenerator(Arrays.asList(args[0].split(",")), connector, opts);
+        if (Boolean.parseBoolean(opts.getOrDefault("setup", "true"))) {
+            gen.setup();
+        }
+        gen.run();
+    }
+
+    // Adds enough inventory that reservations do not run dry during the run
+    private void setup() throws IOException {
+        LoadTarget client = connector.connect(endpoints);
+        try {
+            for (int f = 0; f < flights; f++) {
+                client.addFlight(f, STOCK, 100 + f % 400);
+            }
+            for (int l = 0; l < locations; l++) {
+                client.addCars(location(l), STOCK, 50 + l % 100);
+                client.addRooms(location(l), STOCK, 80 + l % 150);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    public void run() throws Exception {
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Worker(connector.connect(endpoints)));
+        }
+        System.out.println((rate > 0 ? "open loop at " + rate + " req/s" : "closed loop") + ", "
+                + threads + " threads, mix " + String.join(",", mixSpec()));
+
+        if (warmup > 0) {
+            phase(workers, warmup);
+        }
+        stats.clear();
+        recording = true;
+        long elapsed = phase(workers, duration);
+        recording = false;
+        report(elapsed);
+
+        for (Worker w : workers) w.client.close();
+    }
+
+    // Runs all workers for the given number of seconds; returns the elapsed nanoseconds
+    private long phase(List<Worker> workers, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        AtomicLong tickets = new AtomicLong();
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < workers.size(); t++) {
+            Worker w = workers.get(t);
+            Thread thread = new Thread(() -> w.loop(start, end, tickets), "load-" + t);
+            running.add(thread);
+            thread.start();
+        }
+        for (Thread thread : running) thread.join();
+        return System.nanoTime() - start;
+    }
+
+    private final class Worker {
+        final LoadTarget client;
+        final ArrayDeque<Integer> customers = new ArrayDeque<>();
+
+        Worker(LoadTarget client) throws IOException {
+            this.client = client;
+            for (int i = 0; i < customersPerWorker; i++) {
+                customers.add(client.newCustomer());
+            }
+        }
+
+        void loop(long start, long end, AtomicLong tickets) {
+            long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+            while (true) {
+                long due;
+                if (rate > 0) {
+                    due = start + tickets.getAndIncrement() * interval;
+                    if (due >= end) return;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                    if (due >= end) return;
+                }
+                try {
+                    issue(due);
+                } catch (SocketTimeoutException e) {
+                    // the client gave up on the request; the connection is fresh, so keep going
+                    done("timeout", due, false);
+                } catch (RequestFailedException e) {
+                    done(e.isOverloaded() ? "rejected" : "error", due, false);
+                } catch (IOException e) {
+                    System.err.println(Thread.currentThread().getName() + " stopped: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        private void issue(long due) throws IOException {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            String kind = pick(rnd.nextInt(mixWeights[mixWeights.length - 1]));
+            int flight = rnd.nextInt(flights);
+            String location = location(rnd.nextInt(locations));
+            Integer customer = customers.peekLast();
+            switch (kind) {
+                case "query":
+                    switch (rnd.nextInt(3)) {
+                        case 0:  done("queryFlight", due, client.queryFlight(flight) >= 0); break;
+                        case 1:  done("queryCars", due, client.queryCars(location) >= 0); break;
+                        default: done("queryRooms", due, client.queryRooms(location) >= 0); break;
+                    }
+                    break;
+                case "reserve":
+                    if (customer == null) return;
+                    switch (rnd.nextInt(3)) {
+                        case 0:  done("reserveFlight", due, client.reserveFlight(customer, flight)); break;
+                        case 1:  done("reserveCar", due, client.reserveCar(customer, location)); break;
+                        default: done("reserveRoom", due, client.reserveRoom(customer, location)); break;
+                    }
+                    break;
+                case "bundle": {
+                    if (customer == null) return;
+                    Vector<String> legs = new Vector<>();
+                    legs.add(String.valueOf(flight));
+                    legs.add(String.valueOf(rnd.nextInt(flights)));
+                    done("bundle", due, client.bundle(customer, legs, location, true, true));
+                    break;
+                }
+                case "customer":
+                    // churn: a new customer joins; once over the working set, the oldest leaves
+                    if (!customers.isEmpty() && customers.size() >= customersPerWorker && rnd.nextBoolean()) {
+                        done("deleteCustomer", due, client.deleteCustomer(customers.pollFirst()));
+                    } else {
+                        int id = client.newCustomer();
+                        customers.add(id);
+                        done("newCustomer", due, id > 0);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation in mix: " + kind);
+            }
+        }
+    }
+
+    private void done(String op, long due, boolean ok) {
+        if (!recording) return;
+        Stats s = stats.computeIfAbsent(op, k -> new Stats());
+        s.latency.record((System.nanoTime() - due) / 1000);
+        if (!ok) s.failed.increment();
+    }
+
+    private String pick(int r) {
+        for (int i = 0; i < mixWeights.length; i++) {
+            if (r < mixWeights[i]) return mixNames[i];
+        }
+        return mixNames[mixNames.length - 1];
+    }
+
+    private List<String> mixSpec() {
+        List<String> spec = new ArrayList<>();
+        for (int i = 0; i < mixNames.length; i++) {
+            spec.add(mixNames[i] + ":" + (mixWeights[i] - (i == 0 ? 0 : mixWeights[i - 1])));
+        }
+        return spec;
+    }
+
+    private static String location(int i) {
+        return "city" + i;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.printf("%-15s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+                "op", "count", "failed", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, Stats> e : new TreeMap<>(stats).entrySet()) {
+            LatencyHistogram h = e.getValue().latency;
+            total += h.count();
+            System.out.printf("%-15s %10d %8d %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    e.getKey(), h.count(), e.getValue().failed.sum(), h.count() / seconds,
+                    h.percentile(0.50) / 1000.0, h.percentile(0.90) / 1000.0, h.percentile(0.99) / 1000.0,
+                    h.percentile(0.999) / 1000.0, h.max() / 1000.0);
+        }
+        System.out.printf("total %d requests in %.1f s: %.0f req/s%n", total, seconds, total / seconds);
+    }
+}
@@ -0,0 +1,38 @@
+package Client;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * The operations LoadGenerator drives, so the same workload can run over any
+ * transport to the Middleware. TCPClient implements it directly; the RMI stack is
+ * adapted in Benchmark/Client/RMILoadGenerator (RemoteException is an IOException).
+ */
+public interface LoadTarget {
+
+    boolean addFlight(int flightNum, int flightSeats, int flightPrice) throws IOException;
+
+    boolean addCars(String location, int numCars, int price) throws IOException;
+
+    boolean addRooms(String location, int numRooms, int price) throws IOException;
+
+    int newCustomer() throws IOException;
+
+    boolean deleteCustomer(int customerID) throws IOException;
+
+    int queryFlight(int flightNumber) throws IOException;
+
+    int queryCars(String location) throws IOException;
+
+    int queryRooms(String location) throws IOException;
+
+    boolean reserveFlight(int customerID, int flightNumber) throws IOException;
+
+    boolean reserveCar(int customerID, String location) throws IOException;
+
+    boolean reserveRoom(int customerID, String location) throws IOException;
+
+    boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,22 @@
+package Client;
+
+import java.io.IOException;
+
+/**
+ * The Middleware answered, but with a failure (bad arguments, deadline exceeded, or
+ * "Overloaded" when admission control turned the request away). Unlike other
+ * IOExceptions the connection is still fine.
+ */
+public class RequestFailedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestFailedException(String message) {
+        super(message);
+    }
+
+    /** True when the request was rejected without being run, so it is safe to retry later. */
+    public boolean isOverloaded() {
+        return getMessage().startsWith("Overloaded");
+    }
+}
@@ -0,0 +1,69 @@
+package Client;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client end of the request tracing: decides which requests carry a trace ID and
+ * appends the client's root span for each of them to -Dtrace.spans=&lt;file&gt;, in the
+ * same tab-separated format as the servers' Server.Common.SpanSink:
+ *
+ *   traceId  spanId  parentId  service  name  startMicros  durationMicros  ok|failed
+ *
+ * Requests are traced when -Dtrace.spans is set, or -Dtrace.ids=true asks for IDs only
+ * (servers with their own span file still record the request). -Dtrace.sample=0.01
+ * traces a fraction of them, which keeps the files manageable under the load generator.
+ */
+final class SpanLog {
+
+    private static final String FILE = System.getProperty("trace.spans");
+    private static final boolean IDS = FILE != null || Boolean.getBoolean("trace.ids");
+    private static final double SAMPLE = Double.parseDouble(System.getProperty("trace.sample", "1.0"));
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    private static final long NANO_BASE = System.nanoTime();
+
+    private static BufferedWriter out;
+
+    private SpanLog() {
+    }
+
+    /** Whether the next request should be traced. */
+    static boolean sample() {
+        return IDS && (SAMPLE >= 1.0 || ThreadLocalRandom.current().nextDouble() < SAMPLE);
+    }
+
+    /** 64 random bits as 16 hex digits, like the servers' IDs. */
+    static String newId() {
+        String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /** Wall-clock microseconds since the epoch, with nanoTime resolution. */
+    static long nowMicros() {
+        return EPOCH_MICROS + (System.nanoTime() - NANO_BASE) / 1000;
+    }
+
+    static synchronized void record(String traceId, String spanId, String name, long startMicros, long durationMicros, boolean ok) {
+        if (FILE == null) return;
+        try {
+            if (out == null) {
+                out = new BufferedWriter(new FileWriter(FILE, true));
+                Runtime.getRuntime().addShutdownHook(new Thread(SpanLog::flush, "span-flush"));
+            }
+            out.write(traceId + '\t' + spanId + "\t-\tclient\t" + name + '\t' + startMicros + '\t' + durationMicros
+                    + '\t' + (ok ? "ok" : "failed"));
+            out.newLine();
+        } catch (IOException e) {
+            System.err.println("Cannot write spans to " + FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static synchronized void flush() {
+        try {
+            if (out != null) out.flush();
+        } catch (IOException ignored) {
+        }
+    }
+}
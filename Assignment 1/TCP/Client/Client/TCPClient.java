@@ -2,38 +2,134 @@ package Client;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
 
-public class TCPClient {
+public class TCPClient implements LoadTarget {
 
     private static String s_serverHost = "localhost";
     private static int    s_serverPort = 5000;
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // How long a single-Middleware request may take before the client gives up; 0, the
+    // default, waits forever. When set it is sent with the request so the servers can drop
+    // work for answers nobody will read. Fan-outs to every Middleware (the cancel commands,
+    // stats) never carry it: they are slow by nature and their replies are always awaited.
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("client.timeoutMillis", 0);
+
+    // One connection per Middleware instance, in partition order. Customer requests go to
+    // the instance owning the ID (id mod N, see Server.Middleware.CustomerPartition);
+    // everything else is spread round-robin since the RMs are shared.
+    private final List<Connection> middlewares = new ArrayList<>();
+    private int next;
 
     public TCPClient(String host, int port) throws IOException {
-        this.socket = new Socket(host, port);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-        System.out.println("Connected to middleware [" + host + ":" + port + "]");
+        this(Collections.singletonList(host + ":" + port));
+    }
+
+    public TCPClient(List<String> endpoints) throws IOException {
+        try {
+            for (String ep : endpoints) {
+                int colon = ep.lastIndexOf(':');
+                middlewares.add(new Connection(ep.substring(0, colon).trim(), Integer.parseInt(ep.substring(colon + 1).trim())));
+            }
+        } catch (IOException e) {
+            for (Connection c : middlewares) c.close();
+            throw e;
+        }
+    }
+
+    private static class Connection {
+        private final String host;
+        private final int port;
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+
+        Connection(String host, int port) throws IOException {
+            this.host = host;
+            this.port = port;
+            open();
+            System.out.println("Connected to middleware [" + host + ":" + port + "]");
+        }
+
+        private void open() throws IOException {
+            socket = new Socket(host, port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+        }
+
+        // timeoutMillis bounds the wait for the reply (0 waits forever)
+        String call(String request, int timeoutMillis) throws IOException {
+            if (!SpanLog.sample()) return exchange(request, timeoutMillis);
+            // traced: the request names its trace and this client span as the Middleware's parent
+            String traceId = SpanLog.newId();
+            String spanId = SpanLog.newId();
+            String traced = request.substring(0, request.length() - 1)
+                    + ",\"trace\":\"" + traceId + "\",\"parent\":\"" + spanId + "\"}";
+            long start = SpanLog.nowMicros();
+            boolean ok = false;
+            try {
+                String resp = exchange(traced, timeoutMillis);
+                ok = !resp.replaceAll("\\s+", "").contains("\"status\":\"failed\"");
+                return resp;
+            } finally {
+                SpanLog.record(traceId, spanId, method(request), start, SpanLog.nowMicros() - start, ok);
+            }
+        }
+
+        private synchronized String exchange(String request, int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+            out.println(request);
+            String resp;
+            try {
+                resp = in.readLine();
+            } catch (SocketTimeoutException e) {
+                // the late reply would be taken for the next request's, so start a new connection
+                close();
+                open();
+                throw new SocketTimeoutException("No reply from middleware [" + host + ":" + port + "] within " + timeoutMillis + " ms");
+            }
+            if (resp == null) throw new IOException("Connection closed by server");
+            return resp;
+        }
+
+        private static String method(String request) {
+            int start = request.indexOf(':') + 2;
+            return request.substring(start, request.indexOf('"', start));
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public void close() {
+        for (Connection c : middlewares) c.close();
     }
 
     public static void main(String[] args) {
+        List<String> endpoints = null;
         if (args.length > 0) {
             s_serverHost = args[0];
+            if (args.length == 1 && s_serverHost.contains(":")) {
+                // several middlewares: host:port,host:port,... in partition order
+                endpoints = Arrays.asList(s_serverHost.split(","));
+            }
         }
         if (args.length > 1) {
             try {
                 s_serverPort = Integer.parseInt(args[1]);
             } catch (NumberFormatException nfe) {
-                System.err.println((char)27 + "[31;1mClient exception: " + (char)27 + "[0mUsage: java Client.TCPClient [server_hostname [server_port]]");
+                System.err.println((char)27 + "[31;1mClient exception: " + (char)27 + "[0mUsage: java Client.TCPClient [server_hostname [server_port] | host:port,host:port,...]");
                 System.exit(1);
             }
         }
         if (args.length > 2) {
-            System.err.println((char)27 + "[31;1mClient exception: " + (char)27 + "[0mUsage: java Client.TCPClient [server_hostname [server_port]]");
+            System.err.println((char)27 + "[31;1mClient exception: " + (char)27 + "[0mUsage: java Client.TCPClient [server_hostname [server_port] | host:port,host:port,...]");
             System.exit(1);
         }
 
@@ -41,7 +137,9 @@ public class TCPClient {
             boolean first = true;
             while (true) {
                 try {
-                    TCPClient transport = new TCPClient(s_serverHost, s_serverPort);
+                    TCPClient transport = endpoints != null
+                            ? new TCPClient(endpoints)
+                            : new TCPClient(s_serverHost, s_serverPort);
                     Client client = new Client(transport);
                     client.start();
                     break;
@@ -66,6 +164,30 @@ public class TCPClient {
     }
 
     private String send(String method, Object... args) throws IOException {
+        Connection c;
+        synchronized (this) {
+            c = middlewares.get(next);
+            next = (next + 1) % middlewares.size();
+        }
+        return c.call(withTimeout(toJson(method, args)), TIMEOUT_MILLIS);
+    }
+
+    // Sends a customer request to the Middleware that owns the customer
+    private String sendFor(int customerID, String method, Object... args) throws IOException {
+        return middlewares.get(Math.floorMod(customerID, middlewares.size())).call(withTimeout(toJson(method, args)), TIMEOUT_MILLIS);
+    }
+
+    // Sends a request to every Middleware (each one acts on its own customers) and sums the int replies
+    private int sendAllInt(String method, Object... args) throws IOException {
+        String json = toJson(method, args);
+        int sum = 0;
+        for (Connection c : middlewares) {
+            sum += intResp(c.call(json, 0));
+        }
+        return sum;
+    }
+
+    private static String toJson(String method, Object... args) {
         StringBuilder sb = new StringBuilder();
         sb.append("{\"method\":\"").append(esc(method)).append("\",\"args\":[");
         for (int i = 0; i < args.length; i++) {
@@ -87,18 +209,20 @@ public class TCPClient {
             }
         }
         sb.append("]}");
+        return sb.toString();
+    }
 
-        out.println(sb.toString());
-        String resp = in.readLine();
-        if (resp == null) throw new IOException("Connection closed by server");
-        return resp;
+    // Adds the client's timeout, if one is set, to a request built by toJson
+    private static String withTimeout(String json) {
+        if (TIMEOUT_MILLIS <= 0) return json;
+        return json.substring(0, json.length() - 1) + ",\"timeout\":" + TIMEOUT_MILLIS + "}";
     }
 
     private static void ensureOk(String json) throws IOException {
         String t = json.replaceAll("\\s+", "");
         if (t.contains("\"status\":\"failed\"")) {
             String msg = fieldString(t, "message");
-            throw new IOException(msg == null ? "Operation failed" : msg);
+            throw new RequestFailedException(msg == null ? "Operation failed" : msg);
         }
     }
 
@@ -165,6 +289,38 @@ public class TCPClient {
         return sb.toString();
     }
 
+    private static Vector<String> listResp(String raw) throws IOException {
+        ensureOk(raw);
+        Vector<String> list = new Vector<>();
+        int k = raw.indexOf("\"response\":[");
+        if (k < 0) {
+            if (raw.contains("\"response\":null")) return list;
+            throw new IOException("Expected list response");
+        }
+        StringBuilder sb = new StringBuilder();
+        boolean inStr = false, esc = false;
+        for (int p = k + 12; p < raw.length(); p++) {
+            char c = raw.charAt(p);
+            if (inStr) {
+                if (esc) { sb.append(c); esc = false; continue; }
+                if (c == '\\') { esc = true; continue; }
+                if (c == '"') { inStr = false; continue; }
+                sb.append(c);
+                continue;
+            }
+            if (c == '"') { inStr = true; continue; }
+            if (c == ',' || c == ']') {
+                String t = sb.toString().trim();
+                if (!t.isEmpty()) list.add(t);
+                sb.setLength(0);
+                if (c == ']') break;
+                continue;
+            }
+            sb.append(c);
+        }
+        return list;
+    }
+
     private static String fieldString(String t, String key) {
         String patt = "\"" + key + "\":\"";
         int i = t.indexOf(patt);
@@ -201,7 +357,7 @@ public class TCPClient {
     }
 
     public boolean newCustomer(int cid) throws IOException {
-        return boolResp(send("newCustomerID", cid));
+        return boolResp(sendFor(cid, "newCustomerID", cid));
     }
 
     public boolean deleteFlight(int flightNum) throws IOException {
@@ -216,8 +372,20 @@ public class TCPClient {
         return boolResp(send("deleteRooms", location));
     }
 
+    public int cancelFlight(int flightNum) throws IOException {
+        return sendAllInt("cancelFlight", flightNum);
+    }
+
+    public int cancelCars(String location) throws IOException {
+        return sendAllInt("cancelCars", location);
+    }
+
+    public int cancelRooms(String location) throws IOException {
+        return sendAllInt("cancelRooms", location);
+    }
+
     public boolean deleteCustomer(int customerID) throws IOException {
-        return boolResp(send("deleteCustomer", customerID));
+        return boolResp(sendFor(customerID, "deleteCustomer", customerID));
     }
 
     public int queryFlight(int flightNumber) throws IOException {
@@ -234,7 +402,7 @@ public class TCPClient {
 
     public String queryCustomerInfo(int customerID) throws IOException {
         // server method name aligned with your RMI client behavior
-        return stringResp(send("queryCustomer", customerID));
+        return stringResp(sendFor(customerID, "queryCustomer", customerID));
     }
 
     public int queryFlightPrice(int flightNumber) throws IOException {
@@ -249,20 +417,56 @@ public class TCPClient {
         return intResp(send("queryRoomsPrice", location));
     }
 
+    public Vector<String> queryRange(String type, int minAvailable, int maxPrice) throws IOException {
+        return listResp(send("queryRange", type, minAvailable, maxPrice));
+    }
+
+    public Vector<String> queryCheapest(String type, int k, int minAvailable) throws IOException {
+        return listResp(send("queryCheapest", type, k, minAvailable));
+    }
+
+    public Vector<String> queryLocations(String prefix, int limit) throws IOException {
+        return listResp(send("queryLocations", limit, prefix));
+    }
+
+    // [total, key, price, ...] for the cheapest itinerary, or empty if none fits the budget
+    public Vector<String> searchBundle(Vector<String> legs, String location, boolean car, boolean room, int budget) throws IOException {
+        return listResp(send("searchBundle", legs, location, car, room, budget));
+    }
+
     public boolean reserveFlight(int customerID, int flightNumber) throws IOException {
-        return boolResp(send("reserveFlight", customerID, flightNumber));
+        return boolResp(sendFor(customerID, "reserveFlight", customerID, flightNumber));
     }
 
     public boolean reserveCar(int customerID, String location) throws IOException {
-        return boolResp(send("reserveCar", customerID, location));
+        return boolResp(sendFor(customerID, "reserveCar", customerID, location));
     }
 
     public boolean reserveRoom(int customerID, String location) throws IOException {
-        return boolResp(send("reserveRoom", customerID, location));
+        return boolResp(sendFor(customerID, "reserveRoom", customerID, location));
+    }
+
+    public boolean cancelReservation(int customerID, String itemKey) throws IOException {
+        return boolResp(sendFor(customerID, "cancelReservation", customerID, itemKey));
+    }
+
+    public boolean cancelReservations(int customerID, Vector<String> itemKeys) throws IOException {
+        return boolResp(sendFor(customerID, "cancelReservations", customerID, itemKeys));
     }
 
     public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) throws IOException {
-        return boolResp(send("bundle", customerID, flightNumbers, location, car, room));
+        return boolResp(sendFor(customerID, "bundle", customerID, flightNumbers, location, car, room));
+    }
+
+    // Per-method stats of every Middleware, each block headed by its index when there are several
+    public Vector<String> stats(boolean reset) throws IOException {
+        String json = toJson("stats", reset);
+        Vector<String> all = new Vector<>();
+        for (int i = 0; i < middlewares.size(); i++) {
+            if (middlewares.size() > 1) all.add("-- middleware " + i);
+            all.addAll(listResp(middlewares.get(i).call(json, 0)));
+        }
+        return all;
     }
 
     public String getName() throws IOException {
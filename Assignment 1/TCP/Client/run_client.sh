@@ -1,5 +1,6 @@
 #!/usr/bin/env bash
 # Usage: ./run_client.sh [<server_hostname> [<server_port>]]
+#        ./run_client.sh <host:port,host:port,...>   (one per Middleware, in partition order)
 
 set -euo pipefail
 SCRIPT_DIR="$(cd -- "$(dirname -- "${BASH_SOURCE[0]}")" && pwd)"
@@ -8,4 +9,7 @@ find "$SCRIPT_DIR" -name "*.class" -delete
 
 javac -d "$SCRIPT_DIR" $(find "$SCRIPT_DIR" -name "*.java")
 
+if [[ "${1:-}" == *:* ]]; then
+  exec java -cp "$SCRIPT_DIR" Client.TCPClient "$1"
+fi
 exec java -cp "$SCRIPT_DIR" Client.TCPClient ${1:-localhost} ${2:-5000}
@@ -19,7 +19,6 @@ public class Car extends ReservableItem
 
 	public static String getKey(String location)
 	{
-		String s = "car-" + location;
-		return s.toLowerCase();
+		return LocationDictionary.carKey(location);
 	}
 }
@@ -6,16 +6,24 @@
 package Server.Common;
 
 import java.util.*;
+import java.io.*;
 
 public class Customer extends RMItem
 {
+	// Reservations are packed as (item ID, count, price) triples; item IDs come from
+	// ItemDictionary. Customers rarely hold more than a handful of items, so lookups
+	// are a linear scan. Java serialization writes the keys (see writeObject).
+	private static final int FIELDS = 3;
+	private static final int[] NONE = new int[0];
+
 	private int m_ID;
-	private RMHashMap m_reservations;
+	private transient int[] m_items;
+	private transient int m_nItems;
 
 	public Customer(int id)
 	{
 		super();
-		m_reservations = new RMHashMap();
+		m_items = NONE;
 		m_ID = id;
 	}
 
@@ -31,41 +39,174 @@ public class Customer extends RMItem
 
 	public void reserve(String key, String location, int price)
 	{
-		ReservedItem reservedItem = getReservedItem(key);
-		if (reservedItem == null)
+		int item = ItemDictionary.intern(key, location);
+		int slot = indexOf(item);
+		if (slot < 0)
 		{
 			// Customer doesn't already have a reservation for this resource, so create a new one now
-			reservedItem = new ReservedItem(key, location, 1, price);
+			add(item, 1, price);
 		}
 		else
 		{
-			reservedItem.setCount(reservedItem.getCount() + 1);
+			m_items[slot + 1]++;
 			// NOTE: latest price overrides existing price
-			reservedItem.setPrice(price);
+			m_items[slot + 2] = price;
+		}
+	}
+
+	private int indexOf(int item)
+	{
+		for (int i = 0; i < m_nItems * FIELDS; i += FIELDS)
+		{
+			if (m_items[i] == item)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Drops the reservation for an item; returns how many units were held (0 if none)
+	public int cancel(String key)
+	{
+		int item = ItemDictionary.lookup(key);
+		int slot = item < 0 ? -1 : indexOf(item);
+		if (slot < 0)
+		{
+			return 0;
 		}
-		m_reservations.put(reservedItem.getKey(), reservedItem);
+		int count = m_items[slot + 1];
+		int last = (m_nItems - 1) * FIELDS;
+		System.arraycopy(m_items, last, m_items, slot, FIELDS);
+		m_nItems--;
+		return count;
 	}
 
+	// Puts back units taken off with cancel(), e.g. when giving them back to the RM failed
+	public void restore(String key, String location, int count, int price)
+	{
+		int item = ItemDictionary.intern(key, location);
+		int slot = indexOf(item);
+		if (slot < 0)
+		{
+			add(item, count, price);
+		}
+		else
+		{
+			m_items[slot + 1] += count;
+		}
+	}
+
+	private void add(int item, int count, int price)
+	{
+		int at = m_nItems * FIELDS;
+		if (at == m_items.length)
+		{
+			m_items = Arrays.copyOf(m_items, Math.max(FIELDS, m_items.length * 2));
+		}
+		m_items[at] = item;
+		m_items[at + 1] = count;
+		m_items[at + 2] = price;
+		m_nItems++;
+	}
+
+	// Returns a copy; change reservations through reserve()
 	public ReservedItem getReservedItem(String key)
 	{
-		return (ReservedItem)m_reservations.get(key);
+		int item = ItemDictionary.lookup(key);
+		int slot = item < 0 ? -1 : indexOf(item);
+		if (slot < 0)
+		{
+			return null;
+		}
+		return new ReservedItem(ItemDictionary.key(item), ItemDictionary.location(item), m_items[slot + 1], m_items[slot + 2]);
+	}
+
+	public int getReservationCount()
+	{
+		return m_nItems;
+	}
+
+	// Compact binary form used by the Middleware's durable customer store
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeInt(m_ID);
+		writeItems(out);
+	}
+
+	public static Customer readFrom(DataInput in) throws IOException
+	{
+		Customer customer = new Customer(in.readInt());
+		customer.readItems(in);
+		return customer;
+	}
+
+	private void writeItems(DataOutput out) throws IOException
+	{
+		out.writeInt(m_nItems);
+		for (int i = 0; i < m_nItems * FIELDS; i += FIELDS)
+		{
+			out.writeUTF(ItemDictionary.key(m_items[i]));
+			out.writeUTF(ItemDictionary.location(m_items[i]));
+			out.writeInt(m_items[i + 1]);
+			out.writeInt(m_items[i + 2]);
+		}
+	}
+
+	private void readItems(DataInput in) throws IOException
+	{
+		int n = in.readInt();
+		m_items = n == 0 ? NONE : new int[n * FIELDS];
+		m_nItems = 0;
+		for (int i = 0; i < n; i++)
+		{
+			int item = ItemDictionary.intern(in.readUTF(), in.readUTF());
+			add(item, in.readInt(), in.readInt());
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		writeItems(out);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		readItems(in);
 	}
 
 	public String getBill()
 	{
-		String s = "Bill for customer " + m_ID + "\n";
-		for (String key : m_reservations.keySet())
+		StringBuilder s = new StringBuilder(32 + m_nItems * 24);
+		try
+		{
+			appendBill(s);
+		}
+		catch (IOException e)
 		{
-			ReservedItem item = (ReservedItem) m_reservations.get(key);
-			s += + item.getCount() + " " + item.getReservableItemKey() + " $" + item.getPrice() + "\n";
+			// StringBuilder doesn't throw
+		}
+		return s.toString();
+	}
+
+	// Writes the bill straight into the caller's buffer, one line per reserved item
+	public void appendBill(Appendable out) throws IOException
+	{
+		out.append("Bill for customer ").append(Integer.toString(m_ID)).append('\n');
+		for (int i = 0; i < m_nItems * FIELDS; i += FIELDS)
+		{
+			out.append(Integer.toString(m_items[i + 1])).append(' ')
+				.append(ItemDictionary.key(m_items[i]))
+				.append(" $").append(Integer.toString(m_items[i + 2])).append('\n');
 		}
-		return s;
 	}
 
 	public String toString()
 	{
 		String ret = "--- BEGIN CUSTOMER key='";
-		ret += getKey() + "', id='" + getID() + "', reservations=>\n" + m_reservations.toString() + "\n";
+		ret += getKey() + "', id='" + getID() + "', reservations=>\n" + getReservations().toString() + "\n";
 		ret += "--- END CUSTOMER ---";
 		return ret;
 	}
@@ -81,17 +222,25 @@ public class Customer extends RMItem
 		return Customer.getKey(getID());
 	}
 
+	// Builds a map of the reservations; it is a copy, not a view
 	public RMHashMap getReservations()
 	{
-		return m_reservations;
+		RMHashMap reservations = new RMHashMap();
+		for (int i = 0; i < m_nItems * FIELDS; i += FIELDS)
+		{
+			int item = m_items[i];
+			ReservedItem reserved = new ReservedItem(ItemDictionary.key(item), ItemDictionary.location(item), m_items[i + 1], m_items[i + 2]);
+			reservations.put(reserved.getKey(), reserved);
+		}
+		return reservations;
 	}
 
 	public Object clone()
 	{
 		Customer obj = (Customer)super.clone();
 		obj.m_ID = m_ID;
-		obj.m_reservations = (RMHashMap)m_reservations.clone();
+		obj.m_items = m_nItems == 0 ? NONE : Arrays.copyOf(m_items, m_nItems * FIELDS);
+		obj.m_nItems = m_nItems;
 		return obj;
 	}
 }
-
@@ -0,0 +1,130 @@
+package Server.Common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// Hands out customer IDs from leased blocks so that creating a customer never
+// collides and never needs a retry loop.
+//
+// IDs are built from a sequence number: id = seq * stride + offset. Several
+// processes can therefore share the ID space without talking to each other by
+// using the same stride and distinct offsets (see Server.Middleware.CustomerPartition).
+//
+// Callers are spread over a few lease slots by thread; each slot holds a block of
+// sequence numbers taken from the shared high-water mark, so the shared lock is only
+// touched once per block. When a file is given the high-water mark is written (and
+// synced) before a block is used: after a crash the unused tails of leased blocks are
+// skipped, but an ID is never handed out twice.
+public class CustomerIdAllocator
+{
+	public static final int DEFAULT_BLOCK = 1024;
+
+	private final int m_offset;
+	private final int m_stride;
+	private final int m_blockSize;
+	private final File m_file;
+	private final Lease[] m_slots;
+
+	// next sequence number not yet leased to any slot
+	private long m_highWater;
+
+	private static final class Lease
+	{
+		long next;
+		long end;
+	}
+
+	// Unpersisted allocator over the whole ID space
+	public CustomerIdAllocator()
+	{
+		m_offset = 0;
+		m_stride = 1;
+		m_blockSize = DEFAULT_BLOCK;
+		m_file = null;
+		m_slots = newSlots();
+		m_highWater = 1;
+	}
+
+	public CustomerIdAllocator(int offset, int stride, int blockSize, File file) throws IOException
+	{
+		if (stride < 1 || offset < 0 || offset >= stride)
+		{
+			throw new IllegalArgumentException("Bad offset/stride " + offset + "/" + stride);
+		}
+		m_offset = offset;
+		m_stride = stride;
+		m_blockSize = Math.max(1, blockSize);
+		m_file = file;
+		m_slots = newSlots();
+		m_highWater = 1;
+		if (file != null && file.exists())
+		{
+			String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+			m_highWater = Long.parseLong(text);
+			Trace.info("CustomerIdAllocator resuming " + file + " at sequence " + m_highWater);
+		}
+	}
+
+	private static Lease[] newSlots()
+	{
+		Lease[] slots = new Lease[Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2];
+		for (int i = 0; i < slots.length; i++)
+		{
+			slots[i] = new Lease();
+		}
+		return slots;
+	}
+
+	public int next()
+	{
+		long id = Thread.currentThread().getId();
+		Lease lease = m_slots[(int)((id ^ (id >>> 16)) & (m_slots.length - 1))];
+		long seq;
+		synchronized(lease)
+		{
+			if (lease.next == lease.end)
+			{
+				lease.next = leaseBlock();
+				lease.end = lease.next + m_blockSize;
+			}
+			seq = lease.next++;
+		}
+		return (int)(seq * m_stride + m_offset);
+	}
+
+	private synchronized long leaseBlock()
+	{
+		long start = m_highWater;
+		long end = start + m_blockSize;
+		if ((end - 1) * m_stride + m_offset > Integer.MAX_VALUE)
+		{
+			throw new IllegalStateException("Customer ID space exhausted");
+		}
+		if (m_file != null)
+		{
+			try
+			{
+				persist(end);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Cannot persist customer ID high-water mark to " + m_file, e);
+			}
+		}
+		m_highWater = end;
+		return start;
+	}
+
+	private void persist(long highWater) throws IOException
+	{
+		File tmp = new File(m_file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp))
+		{
+			out.write(Long.toString(highWater).getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
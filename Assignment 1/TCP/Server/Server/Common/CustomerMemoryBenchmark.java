@@ -0,0 +1,120 @@
+package Server.Common;
+
+import java.util.Random;
+
+// Heap footprint of a large customer population: the packed Customer representation
+// against the previous one (an RMHashMap of ReservedItem objects with their own key
+// and location strings per customer).
+//
+// Usage: java -Xmx4g Server.Common.CustomerMemoryBenchmark [customers [itemsPerCustomer]]
+public class CustomerMemoryBenchmark
+{
+	private static final int FLIGHTS = 500;
+	private static final int LOCATIONS = 100;
+
+	public static void main(String[] args)
+	{
+		int customers = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int items = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		System.out.println("customers=" + customers + " itemsPerCustomer=" + items);
+
+		long base = usedHeap();
+		Object[] packed = buildPacked(customers, items);
+		long packedBytes = usedHeap() - base;
+		report("packed", packedBytes, customers);
+		packed = null;
+
+		base = usedHeap();
+		Object[] legacy = buildLegacy(customers, items);
+		long legacyBytes = usedHeap() - base;
+		report("legacy", legacyBytes, customers);
+
+		System.out.printf("packed uses %.1f%% of the legacy footprint%n", 100.0 * packedBytes / legacyBytes);
+		// keep the population reachable until measured
+		if (legacy.length == 0)
+		{
+			System.out.println();
+		}
+	}
+
+	private static Object[] buildPacked(int customers, int items)
+	{
+		Random rnd = new Random(42);
+		Customer[] all = new Customer[customers];
+		for (int c = 0; c < customers; c++)
+		{
+			Customer customer = new Customer(c + 1);
+			for (int i = 0; i < items; i++)
+			{
+				String[] item = pick(rnd, i);
+				customer.reserve(item[0], item[1], 100 + i);
+			}
+			all[c] = customer;
+		}
+		return all;
+	}
+
+	private static Object[] buildLegacy(int customers, int items)
+	{
+		Random rnd = new Random(42);
+		RMHashMap[] all = new RMHashMap[customers];
+		for (int c = 0; c < customers; c++)
+		{
+			RMHashMap reservations = new RMHashMap();
+			for (int i = 0; i < items; i++)
+			{
+				String[] item = pick(rnd, i);
+				ReservedItem reserved = new ReservedItem(item[0], item[1], 1, 100 + i);
+				reservations.put(reserved.getKey(), reserved);
+			}
+			all[c] = reservations;
+		}
+		return all;
+	}
+
+	// Fresh strings each time, as the Middleware builds them per request
+	private static String[] pick(Random rnd, int i)
+	{
+		switch (i % 3)
+		{
+			case 0:
+			{
+				int flight = rnd.nextInt(FLIGHTS);
+				return new String[] {Flight.getKey(flight), String.valueOf(flight)};
+			}
+			case 1:
+			{
+				String location = "city" + rnd.nextInt(LOCATIONS);
+				return new String[] {Car.getKey(location), location};
+			}
+			default:
+			{
+				String location = "city" + rnd.nextInt(LOCATIONS);
+				return new String[] {Room.getKey(location), location};
+			}
+		}
+	}
+
+	private static void report(String name, long bytes, int customers)
+	{
+		System.out.printf("%-7s %8.1f MB  %6.1f bytes/customer%n", name, bytes / 1048576.0, (double)bytes / customers);
+	}
+
+	private static long usedHeap()
+	{
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,29 @@
+package Server.Common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+// JFR event covering one request a TCP server dispatched, from the parsed request to the
+// reply being encoded. Only costs anything while a recording is running, e.g. with
+// -XX:StartFlightRecording=filename=mw.jfr; see `jfr print --events Server.Common.DispatchEvent`.
+@Label("Request Dispatch")
+@Category({"Reservations", "Server"})
+@Description("A request handled by a Middleware or Resource Manager")
+@StackTrace(false)
+public class DispatchEvent extends Event
+{
+	@Label("Server")
+	public String server;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Trace ID")
+	public String traceId;
+
+	@Label("Succeeded")
+	public boolean ok;
+}
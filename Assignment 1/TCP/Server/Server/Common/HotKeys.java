@@ -0,0 +1,154 @@
+package Server.Common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Approximate per-key access counts in constant memory, to find the few keys taking most
+// of an RM's traffic. A count-min sketch (DEPTH rows of WIDTH counters) estimates any
+// key's count; it never underestimates and overestimates by at most 2/WIDTH of all
+// accesses with probability 1 - 2^-DEPTH. Next to it, the K keys with the highest
+// estimates so far are kept as heavy-hitter candidates.
+//
+// Recording is lock-free except when a key not yet in the top K overtakes its smallest
+// member, so a key that is already hot costs DEPTH atomic increments per access.
+public class HotKeys
+{
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 4096;
+	private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+	private final int m_k;
+	private final AtomicLongArray m_counts = new AtomicLongArray(DEPTH * WIDTH);
+	private final LongAdder m_total = new LongAdder();
+	private final Set<String> m_top = ConcurrentHashMap.newKeySet();
+	// smallest estimate in the top K when it was last full; a key must beat it to get in
+	private volatile long m_floor;
+	private volatile long m_since = System.currentTimeMillis();
+
+	public HotKeys(int k)
+	{
+		m_k = k;
+	}
+
+	public void record(String key)
+	{
+		int h = key.hashCode();
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+		{
+			estimate = Math.min(estimate, m_counts.incrementAndGet(slot(row, h)));
+		}
+		m_total.increment();
+		if (estimate > m_floor && !m_top.contains(key))
+		{
+			admit(key);
+		}
+	}
+
+	public long estimate(String key)
+	{
+		int h = key.hashCode();
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+		{
+			estimate = Math.min(estimate, m_counts.get(slot(row, h)));
+		}
+		return estimate;
+	}
+
+	// The top keys, highest estimate first, as (key, estimate) pairs; with reset, counting
+	// starts over (accesses recorded while the snapshot is taken may be lost)
+	public synchronized List<Object[]> top(boolean reset)
+	{
+		List<Object[]> out = new ArrayList<Object[]>();
+		for (String key : m_top)
+		{
+			out.add(new Object[] {key, estimate(key)});
+		}
+		out.sort((a, b) -> Long.compare((Long)b[1], (Long)a[1]));
+		if (reset)
+		{
+			for (int i = 0; i < m_counts.length(); i++)
+			{
+				m_counts.set(i, 0);
+			}
+			m_total.reset();
+			m_top.clear();
+			m_floor = 0;
+			m_since = System.currentTimeMillis();
+		}
+		return out;
+	}
+
+	public long total()
+	{
+		return m_total.sum();
+	}
+
+	// Header line and one line per top key, share of all accesses in the window included;
+	// keys in markedHot are flagged (they are already on the RM's sharded counters)
+	public Vector<String> report(boolean reset, Set<String> markedHot)
+	{
+		long total = total();
+		double window = (System.currentTimeMillis() - m_since) / 1000.0;
+		Vector<String> lines = new Vector<String>();
+		List<Object[]> top = top(reset);
+		lines.add(String.format("hotKeys window=%.1fs accesses=%d", window, total));
+		for (Object[] e : top)
+		{
+			long n = (Long)e[1];
+			lines.add(String.format("hot %s ~%d %.1f%%%s", e[0], n, total == 0 ? 0.0 : 100.0 * n / total,
+				markedHot.contains(e[0]) ? " marked" : ""));
+		}
+		return lines;
+	}
+
+	private synchronized void admit(String key)
+	{
+		if (m_top.contains(key))
+		{
+			return;
+		}
+		m_top.add(key);
+		if (m_top.size() <= m_k)
+		{
+			return;
+		}
+		// evict the smallest; the next smallest becomes the bar for getting in
+		String smallest = null;
+		long min = Long.MAX_VALUE;
+		long second = Long.MAX_VALUE;
+		for (String k : m_top)
+		{
+			long e = estimate(k);
+			if (e < min)
+			{
+				second = min;
+				min = e;
+				smallest = k;
+			}
+			else if (e < second)
+			{
+				second = e;
+			}
+		}
+		m_top.remove(smallest);
+		m_floor = second;
+	}
+
+	private static int slot(int row, int hash)
+	{
+		int h = hash ^ SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return row * WIDTH + (h & (WIDTH - 1));
+	}
+}
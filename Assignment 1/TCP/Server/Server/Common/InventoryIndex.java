@@ -0,0 +1,154 @@
+package Server.Common;
+
+import java.util.*;
+
+// Secondary indexes over one kind of reservable item (all flights, all cars or all
+// rooms of an RM): a set ordered by price and one ordered by availability. The
+// ResourceManager updates it on every write so range and top-K queries walk only the
+// matching prefix of an index instead of every key.
+//
+// Not thread-safe; the ResourceManager uses it under the m_data lock.
+public class InventoryIndex
+{
+	private static final class Entry
+	{
+		final String key;
+		final String location;
+		final int count;
+		final int price;
+
+		Entry(String key, String location, int count, int price)
+		{
+			this.key = key;
+			this.location = location;
+			this.count = count;
+			this.price = price;
+		}
+	}
+
+	private static final Comparator<Entry> BY_PRICE = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b)
+		{
+			int c = Integer.compare(a.price, b.price);
+			return c != 0 ? c : a.key.compareTo(b.key);
+		}
+	};
+
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b)
+		{
+			int c = Integer.compare(a.count, b.count);
+			return c != 0 ? c : a.key.compareTo(b.key);
+		}
+	};
+
+	private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+	private final TreeSet<Entry> m_byPrice = new TreeSet<Entry>(BY_PRICE);
+	private final TreeSet<Entry> m_byCount = new TreeSet<Entry>(BY_COUNT);
+
+	public void put(String key, String location, int count, int price)
+	{
+		Entry old = m_entries.get(key);
+		if (old != null && old.count == count && old.price == price)
+		{
+			return;
+		}
+		remove(key);
+		Entry e = new Entry(key, location, count, price);
+		m_entries.put(key, e);
+		m_byPrice.add(e);
+		m_byCount.add(e);
+	}
+
+	public void remove(String key)
+	{
+		Entry old = m_entries.remove(key);
+		if (old != null)
+		{
+			m_byPrice.remove(old);
+			m_byCount.remove(old);
+		}
+	}
+
+	public void clear()
+	{
+		m_entries.clear();
+		m_byPrice.clear();
+		m_byCount.clear();
+	}
+
+	public int size()
+	{
+		return m_entries.size();
+	}
+
+	// Items with at least minAvailable units and price <= maxPrice, cheapest first, at most
+	// limit of them. Appends location, available, price for each match.
+	//
+	// Hot items keep their availability in a ShardedCounter rather than in m_data, so for
+	// them the indexed count is stale and the counter is read instead. They are few.
+	public void query(int minAvailable, int maxPrice, int limit, Map<String, ShardedCounter> hot, Vector<String> out)
+	{
+		if (limit <= 0)
+		{
+			return;
+		}
+		Entry bound = new Entry("\uffff", null, 0, maxPrice);
+		int found = 0;
+
+		// With a price bound the price index gives the candidates in answer order. Without one,
+		// a selective availability bound is better served by the availability index.
+		if (maxPrice == Integer.MAX_VALUE && minAvailable > 0 && limit == Integer.MAX_VALUE)
+		{
+			List<Entry> matches = new ArrayList<Entry>();
+			for (Entry e : m_byCount.tailSet(new Entry("", null, minAvailable, 0), true))
+			{
+				if (!hot.containsKey(e.key))
+				{
+					matches.add(e);
+				}
+			}
+			for (Map.Entry<String, ShardedCounter> h : hot.entrySet())
+			{
+				Entry e = m_entries.get(h.getKey());
+				if (e != null && h.getValue().available() >= minAvailable)
+				{
+					matches.add(e);
+				}
+			}
+			Collections.sort(matches, BY_PRICE);
+			for (Entry e : matches)
+			{
+				append(e, available(e, hot), out);
+			}
+			return;
+		}
+
+		for (Entry e : m_byPrice.headSet(bound, true))
+		{
+			int available = available(e, hot);
+			if (available < minAvailable)
+			{
+				continue;
+			}
+			append(e, available, out);
+			if (++found == limit)
+			{
+				return;
+			}
+		}
+	}
+
+	private static int available(Entry e, Map<String, ShardedCounter> hot)
+	{
+		ShardedCounter counter = hot.get(e.key);
+		return counter != null ? counter.available() : e.count;
+	}
+
+	private static void append(Entry e, int available, Vector<String> out)
+	{
+		out.add(e.location);
+		out.add(Integer.toString(available));
+		out.add(Integer.toString(e.price));
+	}
+}
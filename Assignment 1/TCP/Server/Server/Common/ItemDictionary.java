@@ -0,0 +1,80 @@
+package Server.Common;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process-wide dictionary of reservable item keys ("flight-12", "car-montreal", ...).
+// Customers store the small int ID instead of the key and location strings, so each
+// distinct item is held once no matter how many customers reserved it.
+//
+// IDs are only meaningful inside this process; anything leaving it (snapshots, the
+// durable customer store) writes the key and location themselves.
+public final class ItemDictionary
+{
+	private static final ConcurrentHashMap<String, Integer> s_ids = new ConcurrentHashMap<String, Integer>();
+
+	// Grown under the class lock; readers see a prefix that is always complete for the IDs they hold
+	private static volatile String[] s_keys = new String[64];
+	private static volatile String[] s_locations = new String[64];
+	private static int s_size = 0;
+
+	private ItemDictionary()
+	{
+	}
+
+	// Returns the ID of the item, adding it on first use. The key is case-insensitive like RMItem keys.
+	public static int intern(String key, String location)
+	{
+		Integer id = s_ids.get(key.toLowerCase());
+		if (id != null)
+		{
+			return id;
+		}
+		return add(key, location);
+	}
+
+	private static synchronized int add(String key, String location)
+	{
+		String lower = key.toLowerCase();
+		Integer id = s_ids.get(lower);
+		if (id != null)
+		{
+			return id;
+		}
+		if (s_size == s_keys.length)
+		{
+			String[] keys = new String[s_size * 2];
+			String[] locations = new String[s_size * 2];
+			System.arraycopy(s_keys, 0, keys, 0, s_size);
+			System.arraycopy(s_locations, 0, locations, 0, s_size);
+			s_keys = keys;
+			s_locations = locations;
+		}
+		int n = s_size++;
+		s_keys[n] = key;
+		s_locations[n] = location;
+		s_ids.put(lower, n);
+		return n;
+	}
+
+	// ID of an already known item, or -1
+	public static int lookup(String key)
+	{
+		Integer id = s_ids.get(key.toLowerCase());
+		return id == null ? -1 : id;
+	}
+
+	public static String key(int id)
+	{
+		return s_keys[id];
+	}
+
+	public static String location(int id)
+	{
+		return s_locations[id];
+	}
+
+	public static int size()
+	{
+		return s_ids.size();
+	}
+}
@@ -0,0 +1,83 @@
+package Server.Common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram (HdrHistogram style): values in microseconds are bucketed
+// by power of two, each power of two split into 64 linear sub-buckets, so any value is
+// within about 1.6% of its bucket in a fixed 3,776 counters. Recording is lock-free.
+//
+// Same layout as the client's Client.LatencyHistogram, so server and load generator
+// percentiles can be compared directly.
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF = SUB_COUNT / 2;
+	private static final int RANGES = 64 - SUB_BITS + 1;
+
+	private final AtomicLongArray m_counts = new AtomicLongArray(SUB_COUNT + (RANGES - 1) * HALF);
+	private final AtomicLong m_total = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	public void record(long micros)
+	{
+		long v = Math.max(0, micros);
+		m_counts.incrementAndGet(index(v));
+		m_total.incrementAndGet();
+		long m;
+		while (v > (m = m_max.get()) && !m_max.compareAndSet(m, v))
+		{
+			// retry
+		}
+	}
+
+	public long count()
+	{
+		return m_total.get();
+	}
+
+	public long max()
+	{
+		return m_max.get();
+	}
+
+	// Smallest value v such that at least fraction (0..1) of the values are <= v, to bucket precision
+	public long percentile(double fraction)
+	{
+		long n = m_total.get();
+		if (n == 0)
+		{
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < m_counts.length(); i++)
+		{
+			seen += m_counts.get(i);
+			if (seen >= rank)
+			{
+				return Math.min(highestIn(i), m_max.get());
+			}
+		}
+		return m_max.get();
+	}
+
+	private static int index(long v)
+	{
+		int range = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1));
+		int sub = (int)(v >>> range);
+		return range == 0 ? sub : SUB_COUNT + (range - 1) * HALF + (sub - HALF);
+	}
+
+	private static long highestIn(int index)
+	{
+		if (index < SUB_COUNT)
+		{
+			return index;
+		}
+		int range = (index - SUB_COUNT) / HALF + 1;
+		long sub = (index - SUB_COUNT) % HALF + HALF;
+		return ((sub + 1) << range) - 1;
+	}
+}
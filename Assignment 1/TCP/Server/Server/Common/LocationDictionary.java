@@ -0,0 +1,141 @@
+package Server.Common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process-wide dictionary of car and room locations. Each location is interned once to a
+// small int ID together with its lower-cased name and its "car-" and "room-" keys, so key
+// lookups for a known location are a hash probe instead of a concat and toLowerCase per
+// call, and every item at a location shares one location string.
+//
+// Also keeps the names in a sorted array for prefix (autocomplete) search. Locations are
+// few and added rarely, so the array is copied on each addition and read without locking.
+//
+// Locations are never removed; callers that care whether anything is still offered at a
+// location check for the item themselves.
+public final class LocationDictionary
+{
+	// exact spelling and lower-cased name -> ID
+	private static final ConcurrentHashMap<String, Integer> s_ids = new ConcurrentHashMap<String, Integer>();
+
+	// Grown under the class lock; readers see a prefix that is always complete for the IDs they hold
+	private static volatile String[] s_locations = new String[64];
+	private static volatile String[] s_names = new String[64];
+	private static volatile String[] s_carKeys = new String[64];
+	private static volatile String[] s_roomKeys = new String[64];
+	private static int s_size = 0;
+
+	// lower-cased names in order, replaced wholesale on each addition
+	private static volatile String[] s_sorted = new String[0];
+
+	private LocationDictionary()
+	{
+	}
+
+	// Returns the ID of the location, adding it on first use. Locations are case-insensitive like item keys.
+	public static int intern(String location)
+	{
+		Integer id = s_ids.get(location);
+		if (id != null)
+		{
+			return id;
+		}
+		return add(location);
+	}
+
+	// The shared spelling of a location, interning it first if needed
+	public static String canonical(String location)
+	{
+		return s_locations[intern(location)];
+	}
+
+	private static synchronized int add(String location)
+	{
+		String name = location.toLowerCase();
+		Integer id = s_ids.get(name);
+		if (id != null)
+		{
+			// another spelling of a known location; remember it so it hits the fast path too
+			s_ids.put(location, id);
+			return id;
+		}
+		if (s_size == s_names.length)
+		{
+			s_locations = Arrays.copyOf(s_locations, s_size * 2);
+			s_names = Arrays.copyOf(s_names, s_size * 2);
+			s_carKeys = Arrays.copyOf(s_carKeys, s_size * 2);
+			s_roomKeys = Arrays.copyOf(s_roomKeys, s_size * 2);
+		}
+		int n = s_size;
+		s_locations[n] = location;
+		s_names[n] = name;
+		s_carKeys[n] = "car-" + name;
+		s_roomKeys[n] = "room-" + name;
+		s_size = n + 1;
+		s_ids.put(name, n);
+		s_ids.put(location, n);
+
+		// published last, so a name found here always resolves to its ID
+		String[] sorted = Arrays.copyOf(s_sorted, s_sorted.length + 1);
+		int at = -Arrays.binarySearch(s_sorted, name) - 1;
+		System.arraycopy(s_sorted, at, sorted, at + 1, s_sorted.length - at);
+		sorted[at] = name;
+		s_sorted = sorted;
+		return n;
+	}
+
+	// ID of an already known location, or -1. Does not intern.
+	public static int lookup(String location)
+	{
+		Integer id = s_ids.get(location);
+		if (id == null)
+		{
+			id = s_ids.get(location.toLowerCase());
+		}
+		return id == null ? -1 : id;
+	}
+
+	public static String location(int id)
+	{
+		return s_locations[id];
+	}
+
+	// "car-<location>", from the dictionary when the location is known
+	public static String carKey(String location)
+	{
+		int id = lookup(location);
+		return id >= 0 ? s_carKeys[id] : ("car-" + location).toLowerCase();
+	}
+
+	// "room-<location>", from the dictionary when the location is known
+	public static String roomKey(String location)
+	{
+		int id = lookup(location);
+		return id >= 0 ? s_roomKeys[id] : ("room-" + location).toLowerCase();
+	}
+
+	// Appends the IDs of known locations starting with prefix (case-insensitive), in name order
+	public static void withPrefix(String prefix, List<Integer> out)
+	{
+		String[] sorted = s_sorted;
+		String p = prefix.toLowerCase();
+		int i = Arrays.binarySearch(sorted, p);
+		if (i < 0)
+		{
+			i = -i - 1;
+		}
+		for (; i < sorted.length && sorted[i].startsWith(p); i++)
+		{
+			out.add(s_ids.get(sorted[i]));
+		}
+	}
+
+	public static int size()
+	{
+		synchronized (LocationDictionary.class)
+		{
+			return s_size;
+		}
+	}
+}
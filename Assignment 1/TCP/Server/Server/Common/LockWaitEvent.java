@@ -0,0 +1,65 @@
+package Server.Common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR event for the time spent waiting to enter an item or customer monitor. Started just
+// before the synchronized block and closed with acquired() as its first statement:
+//
+//   LockWaitEvent lockWait = LockWaitEvent.start();
+//   synchronized(m_data) {
+//       lockWait.acquired(key);
+//
+// Uncontended entries are far below the threshold and never reach the recording. The
+// fields are only filled in for waits that will be recorded.
+@Label("Lock Wait")
+@Category({"Reservations", "Locks"})
+@Description("Wait to enter the RM item store or a Middleware customer monitor")
+@StackTrace(true)
+@Threshold("100 us")
+public class LockWaitEvent extends Event
+{
+	@Label("Lock")
+	public String lock;
+
+	@Label("Item Key")
+	public String key;
+
+	@Label("Customer ID")
+	public int customerID;
+
+	public static LockWaitEvent start()
+	{
+		LockWaitEvent e = new LockWaitEvent();
+		e.begin();
+		return e;
+	}
+
+	// Entered the RM item store for key
+	public void acquired(String key)
+	{
+		end();
+		if (shouldCommit())
+		{
+			this.lock = "item";
+			this.key = key;
+			commit();
+		}
+	}
+
+	// Entered a Middleware customer monitor
+	public void acquired(int customerID)
+	{
+		end();
+		if (shouldCommit())
+		{
+			this.lock = "customer";
+			this.customerID = customerID;
+			commit();
+		}
+	}
+}
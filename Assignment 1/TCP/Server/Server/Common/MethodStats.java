@@ -0,0 +1,111 @@
+package Server.Common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide per-method call counters and latency histograms. Servers record every
+// request they dispatch under the method name, and the Middleware also records each
+// call it makes to an RM (as "<RM>/<method>"), so both the client-facing latency and
+// where it goes downstream are visible.
+//
+// Read through the "stats" protocol method and printed every -Dstats.dumpSeconds
+// (default 60, 0 turns it off) when there was traffic since the last dump.
+public final class MethodStats
+{
+	private static final class Entry
+	{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+	}
+
+	// method names come from requests, so a client sending junk must not grow the map without bound
+	private static final int MAX_METHODS = 512;
+
+	private static final ConcurrentHashMap<String, Entry> s_entries = new ConcurrentHashMap<String, Entry>();
+	private static volatile long s_since = System.currentTimeMillis();
+	private static ScheduledExecutorService s_dumper;
+
+	private MethodStats()
+	{
+	}
+
+	// Records one call that started at startNanos (System.nanoTime) and has just finished
+	public static void record(String method, long startNanos, boolean ok)
+	{
+		Entry e = s_entries.get(method);
+		if (e == null)
+		{
+			e = s_entries.computeIfAbsent(s_entries.size() < MAX_METHODS ? method : "other", k -> new Entry());
+		}
+		e.latency.record((System.nanoTime() - startNanos) / 1000);
+		if (!ok)
+		{
+			e.errors.increment();
+		}
+	}
+
+	// One line per method, in name order, after a line giving the window covered. With
+	// reset, counting starts over; calls finishing while the snapshot is taken may be lost.
+	public static Vector<String> snapshot(boolean reset)
+	{
+		long now = System.currentTimeMillis();
+		Vector<String> out = new Vector<String>();
+		out.add(String.format("window=%.1fs", (now - s_since) / 1000.0));
+		for (Map.Entry<String, Entry> me : new TreeMap<String, Entry>(s_entries).entrySet())
+		{
+			if (reset)
+			{
+				s_entries.remove(me.getKey(), me.getValue());
+			}
+			LatencyHistogram h = me.getValue().latency;
+			out.add(String.format("%s count=%d errors=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+				me.getKey(), h.count(), me.getValue().errors.sum(),
+				h.percentile(0.50) / 1000.0, h.percentile(0.99) / 1000.0, h.percentile(0.999) / 1000.0, h.max() / 1000.0));
+		}
+		if (reset)
+		{
+			s_since = now;
+		}
+		return out;
+	}
+
+	// Starts the periodic dump to stdout, once per process
+	public static synchronized void startDump(final String tag)
+	{
+		int seconds = Integer.getInteger("stats.dumpSeconds", 60);
+		if (seconds <= 0 || s_dumper != null)
+		{
+			return;
+		}
+		s_dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "stats-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		final long[] lastTotal = {0};
+		s_dumper.scheduleAtFixedRate(() -> {
+			long total = 0;
+			for (Entry e : s_entries.values())
+			{
+				total += e.latency.count();
+			}
+			if (total == lastTotal[0])
+			{
+				return;
+			}
+			lastTotal[0] = total;
+			StringBuilder b = new StringBuilder("[" + tag + "] stats");
+			for (String line : snapshot(false))
+			{
+				b.append("\n  ").append(line);
+			}
+			System.out.println(b);
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+}
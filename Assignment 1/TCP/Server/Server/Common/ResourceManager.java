@@ -8,6 +8,7 @@ package Server.Common;
 import Server.Interface.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.rmi.RemoteException;
 import java.io.*;
 
@@ -16,6 +17,17 @@ public class ResourceManager implements IResourceManager
 	protected String m_name = "";
 	protected RMHashMap m_data = new RMHashMap();
 
+	// Items designated "hot" keep their count/reserved in a sharded counter instead of m_data
+	protected ConcurrentHashMap<String, ShardedCounter> m_hot = new ConcurrentHashMap<String, ShardedCounter>();
+
+	protected CustomerIdAllocator m_customerIds = new CustomerIdAllocator();
+
+	// Price/availability indexes per item type ("flight", "car", "room"), guarded by m_data
+	protected HashMap<String, InventoryIndex> m_indexes = new HashMap<String, InventoryIndex>();
+
+	// Approximate access counts per key, reported with the RM's stats (-Drm.hotKeys top keys, default 16)
+	protected HotKeys m_hotKeys = new HotKeys(Integer.getInteger("rm.hotKeys", 16));
+
 	public ResourceManager(String p_name)
 	{
 		m_name = p_name;
@@ -24,10 +36,19 @@ public class ResourceManager implements IResourceManager
 	// Reads a data item
 	protected RMItem readData(String key)
 	{
+		m_hotKeys.record(key);
+		LockWaitEvent lockWait = LockWaitEvent.start();
 		synchronized(m_data) {
+			lockWait.acquired(key);
 			RMItem item = m_data.get(key);
 			if (item != null) {
-				return (RMItem)item.clone();
+				RMItem copy = (RMItem)item.clone();
+				ShardedCounter hot = m_hot.get(key);
+				if (hot != null) {
+					((ReservableItem)copy).setCount(hot.available());
+					((ReservableItem)copy).setReserved(hot.reserved());
+				}
+				return copy;
 			}
 			return null;
 		}
@@ -36,16 +57,342 @@ public class ResourceManager implements IResourceManager
 	// Writes a data item
 	protected void writeData(String key, RMItem value)
 	{
+		LockWaitEvent lockWait = LockWaitEvent.start();
 		synchronized(m_data) {
+			lockWait.acquired(key);
 			m_data.put(key, value);
+			index(key, value);
 		}
 	}
 
 	// Remove the item out of storage
 	protected void removeData(String key)
 	{
+		LockWaitEvent lockWait = LockWaitEvent.start();
 		synchronized(m_data) {
+			lockWait.acquired(key);
 			m_data.remove(key);
+			m_hot.remove(key);
+			InventoryIndex idx = m_indexes.get(itemType(key));
+			if (idx != null)
+			{
+				idx.remove(key);
+			}
+		}
+	}
+
+	// Caller holds m_data
+	private void index(String key, RMItem value)
+	{
+		if (!(value instanceof ReservableItem))
+		{
+			return;
+		}
+		ReservableItem item = (ReservableItem)value;
+		if (item instanceof Car || item instanceof Room)
+		{
+			// also covers items arriving by snapshot or import, so prefix search sees them
+			LocationDictionary.intern(item.getLocation());
+		}
+		String type = itemType(key);
+		InventoryIndex idx = m_indexes.get(type);
+		if (idx == null)
+		{
+			idx = new InventoryIndex();
+			m_indexes.put(type, idx);
+		}
+		idx.put(key, item.getLocation(), item.getCount(), item.getPrice());
+	}
+
+	// Rebuilds the indexes after m_data was replaced wholesale (e.g. a snapshot was installed)
+	protected void reindex()
+	{
+		synchronized(m_data) {
+			m_indexes.clear();
+			for (Map.Entry<String, RMItem> e : m_data.entrySet())
+			{
+				index(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private static String itemType(String key)
+	{
+		int dash = key.indexOf('-');
+		return dash < 0 ? key : key.substring(0, dash);
+	}
+
+	// Availability and price of several items in one call, as (available, price) pairs in
+	// the order asked; an unknown item reads as (0, 0)
+	public Vector<String> queryItems(Vector<String> keys)
+	{
+		Trace.info("RM::queryItems(" + keys.size() + " items) called");
+		Vector<String> out = new Vector<String>();
+		for (String key : keys)
+		{
+			ReservableItem item = (ReservableItem)readData(key);
+			out.add(Integer.toString(item == null ? 0 : item.getCount()));
+			out.add(Integer.toString(item == null ? 0 : item.getPrice()));
+		}
+		return out;
+	}
+
+	// Items of one type ("flight", "car" or "room") with at least minAvailable units at a
+	// price of at most maxPrice, cheapest first, as (location, available, price) triples
+	public Vector<String> queryRange(String type, int minAvailable, int maxPrice)
+	{
+		Trace.info("RM::queryRange(" + type + ", >=" + minAvailable + ", <=$" + maxPrice + ") called");
+		return queryIndex(type, minAvailable, maxPrice, Integer.MAX_VALUE);
+	}
+
+	// The k cheapest items of one type with at least minAvailable units, as (location, available, price) triples
+	public Vector<String> queryCheapest(String type, int k, int minAvailable)
+	{
+		Trace.info("RM::queryCheapest(" + type + ", " + k + ", >=" + minAvailable + ") called");
+		return queryIndex(type, minAvailable, Integer.MAX_VALUE, k);
+	}
+
+	// Locations starting with prefix (case-insensitive) at which this RM has cars or rooms,
+	// in name order, at most limit of them
+	public Vector<String> queryLocations(String prefix, int limit)
+	{
+		Trace.info("RM::queryLocations(" + prefix + ", " + limit + ") called");
+		List<Integer> ids = new ArrayList<Integer>();
+		LocationDictionary.withPrefix(prefix, ids);
+		Vector<String> out = new Vector<String>();
+		synchronized(m_data) {
+			for (int i = 0; i < ids.size() && out.size() < limit; i++)
+			{
+				String location = LocationDictionary.location(ids.get(i));
+				if (m_data.containsKey(Car.getKey(location)) || m_data.containsKey(Room.getKey(location)))
+				{
+					out.add(location);
+				}
+			}
+		}
+		return out;
+	}
+
+	private Vector<String> queryIndex(String type, int minAvailable, int maxPrice, int limit)
+	{
+		Vector<String> out = new Vector<String>();
+		synchronized(m_data) {
+			InventoryIndex idx = m_indexes.get(type.toLowerCase());
+			if (idx != null)
+			{
+				idx.query(minAvailable, maxPrice, limit, m_hot, out);
+			}
+		}
+		return out;
+	}
+
+	// Switches an existing item to sharded inventory, for flights/locations that are
+	// expected to take a burst of concurrent reservations (e.g. a flash sale)
+	public boolean markHot(String key)
+	{
+		Trace.info("RM::markHot(" + key + ") called");
+		synchronized(m_data) {
+			RMItem item = m_data.get(key);
+			if (!(item instanceof ReservableItem))
+			{
+				Trace.warn("RM::markHot(" + key + ") failed--item doesn't exist");
+				return false;
+			}
+			if (!m_hot.containsKey(key))
+			{
+				ReservableItem r = (ReservableItem)item;
+				ShardedCounter counter = new ShardedCounter(r.getCount(), r.getReserved());
+				m_hot.put(key, counter);
+				Trace.info("RM::markHot(" + key + ") split " + r.getCount() + " units over " + counter.shards() + " shards");
+			}
+			return true;
+		}
+	}
+
+	// Adds capacity to an item; hot items take it through their counter. Caller holds m_data
+	protected void addCount(ReservableItem item, int count)
+	{
+		ShardedCounter hot = m_hot.get(item.getKey());
+		if (hot != null)
+		{
+			// the stored copy of a hot item is stale; refresh it so the index sees current numbers
+			hot.add(count);
+			item.setCount(hot.available());
+			item.setReserved(hot.reserved());
+			return;
+		}
+		item.setCount(item.getCount() + count);
+	}
+
+	// Stores fresh if its key doesn't exist yet, otherwise adds its count to the stored item
+	// and takes its price if greater than zero. Check and update happen in one step under
+	// m_data, so reservations running meanwhile are not overwritten. Returns the updated
+	// item, or null if fresh was stored as is.
+	protected ReservableItem addStock(ReservableItem fresh)
+	{
+		String key = fresh.getKey();
+		m_hotKeys.record(key);
+		LockWaitEvent lockWait = LockWaitEvent.start();
+		synchronized(m_data) {
+			lockWait.acquired(key);
+			RMItem stored = m_data.get(key);
+			if (!(stored instanceof ReservableItem))
+			{
+				m_data.put(key, fresh);
+				index(key, fresh);
+				return null;
+			}
+			ReservableItem item = (ReservableItem)stored.clone();
+			addCount(item, fresh.getCount());
+			if (fresh.getPrice() > 0)
+			{
+				item.setPrice(fresh.getPrice());
+			}
+			m_data.put(key, item);
+			index(key, item);
+			return item;
+		}
+	}
+
+	// Gives back reserved units of an item read with readData(). The stored copy is updated
+	// under m_data rather than written back from the caller's clone, so concurrent
+	// reservations and releases on the same item are not lost
+	protected void releaseItem(ReservableItem item, int count)
+	{
+		String key = item.getKey();
+		ShardedCounter hot = m_hot.get(key);
+		if (hot != null)
+		{
+			hot.release(count);
+			return;
+		}
+		LockWaitEvent lockWait = LockWaitEvent.start();
+		synchronized(m_data) {
+			lockWait.acquired(key);
+			hot = m_hot.get(key);
+			if (hot != null)
+			{
+				// marked hot since we looked
+				hot.release(count);
+				return;
+			}
+			RMItem stored = m_data.get(key);
+			if (!(stored instanceof ReservableItem))
+			{
+				// deleted or moved to another RM meanwhile
+				return;
+			}
+			ReservableItem current = (ReservableItem)stored.clone();
+			current.setReserved(current.getReserved() - count);
+			current.setCount(current.getCount() + count);
+			m_data.put(key, current);
+			index(key, current);
+		}
+	}
+
+	// Takes one unit of an item if any is left; caller holds m_data
+	private boolean takeUnit(String key)
+	{
+		ShardedCounter hot = m_hot.get(key);
+		if (hot != null)
+		{
+			// marked hot since the caller looked
+			return hot.take();
+		}
+		RMItem stored = m_data.get(key);
+		if (!(stored instanceof ReservableItem))
+		{
+			return false;
+		}
+		ReservableItem item = (ReservableItem)stored.clone();
+		if (item.getCount() <= 0)
+		{
+			return false;
+		}
+		item.setCount(item.getCount() - 1);
+		item.setReserved(item.getReserved() + 1);
+		m_data.put(key, item);
+		index(key, item);
+		return true;
+	}
+
+	// The most accessed keys since the last reset, flagging those already marked hot
+	public Vector<String> hotKeys(boolean reset)
+	{
+		return m_hotKeys.report(reset, m_hot.keySet());
+	}
+
+	// Keys of all reservable items held by this RM (used when moving items between RMs)
+	public Vector<String> listKeys()
+	{
+		synchronized(m_data) {
+			Vector<String> keys = new Vector<String>();
+			for (Map.Entry<String, RMItem> e : m_data.entrySet())
+			{
+				if (e.getValue() instanceof ReservableItem)
+				{
+					keys.add(e.getKey());
+				}
+			}
+			return keys;
+		}
+	}
+
+	// Returns [location, count, price, reserved] of an item, or an empty vector
+	public Vector<String> exportItem(String key)
+	{
+		Vector<String> v = new Vector<String>();
+		RMItem item = readData(key);
+		if (item instanceof ReservableItem)
+		{
+			ReservableItem r = (ReservableItem)item;
+			v.add(r.getLocation());
+			v.add(String.valueOf(r.getCount()));
+			v.add(String.valueOf(r.getPrice()));
+			v.add(String.valueOf(r.getReserved()));
+		}
+		return v;
+	}
+
+	// Installs an item moved over from another RM, replacing any local copy
+	public boolean importItem(String key, String location, int count, int price, int reserved)
+	{
+		Trace.info("RM::importItem(" + key + ", " + location + ", " + count + ", $" + price + ", " + reserved + ") called");
+		ReservableItem item;
+		if (key.startsWith("flight-"))
+		{
+			item = new Flight(Integer.parseInt(location), count, price);
+		}
+		else if (key.startsWith("car-"))
+		{
+			item = new Car(location, count, price);
+		}
+		else if (key.startsWith("room-"))
+		{
+			item = new Room(location, count, price);
+		}
+		else
+		{
+			Trace.warn("RM::importItem(" + key + ") failed--unknown item type");
+			return false;
+		}
+		item.setReserved(reserved);
+		synchronized(m_data) {
+			m_hot.remove(key);
+			m_data.put(key, item);
+			index(key, item);
+		}
+		return true;
+	}
+
+	// Removes an item regardless of outstanding reservations (it has been moved to another RM)
+	public boolean dropItem(String key)
+	{
+		Trace.info("RM::dropItem(" + key + ") called");
+		synchronized(m_data) {
+			boolean had = m_data.containsKey(key);
+			removeData(key);
+			return had;
 		}
 	}
 
@@ -80,6 +427,15 @@ public class ResourceManager implements IResourceManager
 	protected int queryNum(String key)
 	{
 		Trace.info("RM::queryNum(" + key + ") called");
+		ShardedCounter hot = m_hot.get(key);
+		if (hot != null)
+		{
+			// hot items are counted outside m_data, so skip its monitor
+			m_hotKeys.record(key);
+			int available = hot.available();
+			Trace.info("RM::queryNum(" + key + ") returns count=" + available);
+			return available;
+		}
 		ReservableItem curObj = (ReservableItem)readData(key);
 		int value = 0;  
 		if (curObj != null)
@@ -107,11 +463,27 @@ public class ResourceManager implements IResourceManager
 	// Reserve an item
 	protected boolean reserveItem(int customerID, String key, String location)
 	{
-
-		ReservableItem item = (ReservableItem)readData(key);
-		item.setCount(item.getCount() - 1);
-		item.setReserved(item.getReserved() + 1);
-		writeData(item.getKey(), item);
+		m_hotKeys.record(key);
+		ShardedCounter hot = m_hot.get(key);
+		boolean taken;
+		if (hot != null)
+		{
+			taken = hot.take();
+		}
+		else
+		{
+			// check and take in one step: several Middlewares may reserve the last unit at once
+			LockWaitEvent lockWait = LockWaitEvent.start();
+			synchronized(m_data) {
+				lockWait.acquired(key);
+				taken = takeUnit(key);
+			}
+		}
+		if (!taken)
+		{
+			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist or is sold out");
+			return false;
+		}
 
 		Trace.info("RM::reserveItem("+customerID + ", " + key + ", " + location + ") succeeded");
 		return true;
@@ -122,23 +494,13 @@ public class ResourceManager implements IResourceManager
 	public boolean addFlight(int flightNum, int flightSeats, int flightPrice) throws RemoteException
 	{
 		Trace.info("RM::addFlight(" + flightNum + ", " + flightSeats + ", $" + flightPrice + ") called");
-		Flight curObj = (Flight)readData(Flight.getKey(flightNum));
+		ReservableItem curObj = addStock(new Flight(flightNum, flightSeats, flightPrice));
 		if (curObj == null)
 		{
-			// Doesn't exist yet, add it
-			Flight newObj = new Flight(flightNum, flightSeats, flightPrice);
-			writeData(newObj.getKey(), newObj);
 			Trace.info("RM::addFlight() created new flight " + flightNum + ", seats=" + flightSeats + ", price=$" + flightPrice);
 		}
 		else
 		{
-			// Add seats to existing flight and update the price if greater than zero
-			curObj.setCount(curObj.getCount() + flightSeats);
-			if (flightPrice > 0)
-			{
-				curObj.setPrice(flightPrice);
-			}
-			writeData(curObj.getKey(), curObj);
 			Trace.info("RM::addFlight() modified existing flight " + flightNum + ", seats=" + curObj.getCount() + ", price=$" + flightPrice);
 		}
 		return true;
@@ -149,23 +511,13 @@ public class ResourceManager implements IResourceManager
 	public boolean addCars(String location, int count, int price) throws RemoteException
 	{
 		Trace.info("RM::addCars(" + location + ", " + count + ", $" + price + ") called");
-		Car curObj = (Car)readData(Car.getKey(location));
+		ReservableItem curObj = addStock(new Car(LocationDictionary.canonical(location), count, price));
 		if (curObj == null)
 		{
-			// Car location doesn't exist yet, add it
-			Car newObj = new Car(location, count, price);
-			writeData(newObj.getKey(), newObj);
 			Trace.info("RM::addCars() created new location " + location + ", count=" + count + ", price=$" + price);
 		}
 		else
 		{
-			// Add count to existing car location and update price if greater than zero
-			curObj.setCount(curObj.getCount() + count);
-			if (price > 0)
-			{
-				curObj.setPrice(price);
-			}
-			writeData(curObj.getKey(), curObj);
 			Trace.info("RM::addCars() modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
 		}
 		return true;
@@ -176,21 +528,11 @@ public class ResourceManager implements IResourceManager
 	public boolean addRooms(String location, int count, int price) throws RemoteException
 	{
 		Trace.info("RM::addRooms(" + location + ", " + count + ", $" + price + ") called");
-		Room curObj = (Room)readData(Room.getKey(location));
+		ReservableItem curObj = addStock(new Room(LocationDictionary.canonical(location), count, price));
 		if (curObj == null)
 		{
-			// Room location doesn't exist yet, add it
-			Room newObj = new Room(location, count, price);
-			writeData(newObj.getKey(), newObj);
 			Trace.info("RM::addRooms() created new room location " + location + ", count=" + count + ", price=$" + price);
 		} else {
-			// Add count to existing object and update price if greater than zero
-			curObj.setCount(curObj.getCount() + count);
-			if (price > 0)
-			{
-				curObj.setPrice(price);
-			}
-			writeData(curObj.getKey(), curObj);
 			Trace.info("RM::addRooms() modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
 		}
 		return true;
@@ -262,8 +604,7 @@ public class ResourceManager implements IResourceManager
 		}
 		else
 		{
-			Trace.info("RM::queryCustomerInfo(" + customerID + ")");
-			System.out.println(customer.getBill());
+			Trace.info("RM::queryCustomerInfo(" + customerID + ") " + customer.getReservationCount() + " items");
 			return customer.getBill();
 		}
 	}
@@ -271,9 +612,12 @@ public class ResourceManager implements IResourceManager
 	public int newCustomer() throws RemoteException
 	{
         	Trace.info("RM::newCustomer() called");
-		// Generate a globally unique ID for the new customer; if it generates duplicates for you, then adjust
-		int cid = Integer.parseInt(String.valueOf(Calendar.getInstance().get(Calendar.MILLISECOND)) +
-			String.valueOf(Math.round(Math.random() * 100 + 1)));
+		// Allocated IDs are unique; only a customer created earlier with an explicit ID can be in the way
+		int cid = m_customerIds.next();
+		while (readData(Customer.getKey(cid)) != null)
+		{
+			cid = m_customerIds.next();
+		}
 		Customer customer = new Customer(cid);
 		writeData(customer.getKey(), customer);
 		Trace.info("RM::newCustomer(" + cid + ") returns ID=" + cid);
@@ -317,9 +661,7 @@ public class ResourceManager implements IResourceManager
 				Trace.info("RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " " +  reserveditem.getCount() +  " times");
 				ReservableItem item  = (ReservableItem)readData(reserveditem.getKey());
 				Trace.info("RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " which is reserved " +  item.getReserved() +  " times and is still available " + item.getCount() + " times");
-				item.setReserved(item.getReserved() - reserveditem.getCount());
-				item.setCount(item.getCount() + reserveditem.getCount());
-				writeData(item.getKey(), item);
+				releaseItem(item, reserveditem.getCount());
 			}
 
 			// Remove the customer from the storage
@@ -340,14 +682,88 @@ public class ResourceManager implements IResourceManager
 
         Trace.info("RM::removeReservation(" + customerID + ") item " + reserveditemKey + " reserved " + item.getReserved() + " times, available " + item.getCount() + " times");
 
-        item.setReserved(item.getReserved() - reserveditemCount);
-        item.setCount(item.getCount() + reserveditemCount);
-        writeData(item.getKey(), item);
+        releaseItem(item, reserveditemCount);
 
         Trace.info("RM::removeReservation(" + customerID + ") succeeded");
         return true;
     }
 
+	public boolean cancelReservation(int customerID, String itemKey) throws RemoteException
+	{
+		Vector<String> keys = new Vector<String>();
+		keys.add(itemKey);
+		return cancelReservations(customerID, keys);
+	}
+
+	public boolean cancelReservations(int customerID, Vector<String> itemKeys) throws RemoteException
+	{
+		Trace.info("RM::cancelReservations(" + customerID + ", " + itemKeys + ") called");
+		Customer customer = (Customer)readData(Customer.getKey(customerID));
+		if (customer == null)
+		{
+			Trace.warn("RM::cancelReservations(" + customerID + ") failed--customer doesn't exist");
+			return false;
+		}
+		boolean all = true;
+		for (String key : itemKeys)
+		{
+			int count = customer.cancel(key);
+			if (count == 0)
+			{
+				Trace.warn("RM::cancelReservations(" + customerID + ") customer holds no " + key);
+				all = false;
+				continue;
+			}
+			ReservableItem item = (ReservableItem)readData(key);
+			if (item != null)
+			{
+				releaseItem(item, count);
+			}
+		}
+		writeData(customer.getKey(), customer);
+		return all;
+	}
+
+	// Releases several items for one customer in a single call (the Middleware giving back
+	// everything a customer holds on this RM)
+	public boolean releaseReservations(int customerID, String[] keys, int[] counts)
+	{
+		boolean all = true;
+		for (int i = 0; i < keys.length; i++)
+		{
+			ReservableItem item = (ReservableItem)readData(keys[i]);
+			if (item == null)
+			{
+				Trace.warn("RM::releaseReservations(" + customerID + ") item " + keys[i] + " doesn't exist");
+				all = false;
+				continue;
+			}
+			releaseItem(item, counts[i]);
+		}
+		Trace.info("RM::releaseReservations(" + customerID + ") released " + keys.length + " items");
+		return all;
+	}
+
+	// Releases the units several customers hold on one item in a single call
+	// (the Middleware cancelling an item for all of its holders)
+	public boolean removeReservations(String key, int[] customerIDs, int[] counts)
+	{
+		ReservableItem item = (ReservableItem)readData(key);
+		if (item == null)
+		{
+			Trace.warn("RM::removeReservations(" + key + ") failed--item doesn't exist");
+			return false;
+		}
+		int total = 0;
+		for (int count : counts)
+		{
+			total += count;
+		}
+		releaseItem(item, total);
+		Trace.info("RM::removeReservations(" + key + ") released " + total + " for " + customerIDs.length + " customers");
+		return true;
+	}
+
 	// Adds flight reservation to this customer
 	public boolean reserveFlight(int customerID, int flightNum) throws RemoteException
 	{
@@ -0,0 +1,236 @@
+package Server.Common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Throughput and allocation of the core ResourceManager operations, in process (no
+// sockets), for 1..N threads and a uniform or Zipfian choice of flight. Meant for
+// judging storage and locking changes: run it before and after and compare ops/s and
+// bytes/op per row.
+//
+// Each case gets a fresh RM, a warm-up pass on its own fixture, then a measured pass.
+// Bytes/op comes from the JVM's per-thread allocation counter, so it covers everything
+// the operation allocates, tracing strings included (tracing is switched off here).
+//
+// Usage: java Server.Common.ResourceManagerBenchmark [seconds [maxThreads [flights [ops...]]]]
+//   ops: addFlight queryFlight queryFlightPrice reserveFlight deleteCustomer getBill (default all)
+public class ResourceManagerBenchmark
+{
+	private static final int ITEMS_PER_CUSTOMER = 5;
+	// customers each thread can delete in one pass; a pass ends early when they run out
+	private static final int DELETE_POOL = Integer.getInteger("bench.deletePool", 50000);
+	private static final double ZIPF_EXPONENT = 0.99;
+
+	// One benchmark operation as run by one worker thread; false when it has nothing left to do
+	private interface Op
+	{
+		boolean run(int flight) throws Exception;
+	}
+
+	private interface Fixture
+	{
+		Op forThread(int thread) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int flights = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		List<String> ops = args.length > 3
+			? Arrays.asList(args).subList(3, args.length)
+			: Arrays.asList("addFlight", "queryFlight", "queryFlightPrice", "reserveFlight", "deleteCustomer", "getBill");
+
+		Trace.setVerbose(false);
+		System.out.println("seconds=" + seconds + " maxThreads=" + maxThreads + " flights=" + flights);
+		System.out.printf("%-17s %-8s %7s %14s %10s %10s%n", "op", "keys", "threads", "ops/s", "ns/op", "B/op");
+
+		int[][] distributions = {uniform(flights), zipfian(flights, ZIPF_EXPONENT)};
+		String[] names = {"uniform", "zipfian"};
+		for (String op : ops)
+		{
+			for (int d = 0; d < distributions.length; d++)
+			{
+				for (int threads = 1; threads <= maxThreads; threads *= 2)
+				{
+					run(op, names[d], distributions[d], flights, threads, seconds);
+				}
+			}
+		}
+	}
+
+	private static void run(String op, String dist, int[] keys, int flights, int threads, int seconds) throws Exception
+	{
+		measure(setup(op, keys, flights, threads), keys, threads, Math.max(1, seconds / 2));
+		long[] r = measure(setup(op, keys, flights, threads), keys, threads, seconds);
+		long ops = r[0];
+		double elapsed = r[1] / 1e9;
+		System.out.printf("%-17s %-8s %7d %,14d %,10d %,10d%n", op, dist, threads,
+			(long)(ops / elapsed), ops == 0 ? 0 : r[1] * threads / ops, ops == 0 ? 0 : r[2] / ops);
+	}
+
+	private static Fixture setup(String op, final int[] keys, int flights, int threads) throws Exception
+	{
+		final ResourceManager rm = new ResourceManager("Bench");
+		for (int f = 0; f < flights; f++)
+		{
+			rm.addFlight(f, Integer.MAX_VALUE / 2, 100 + f % 500);
+		}
+		switch (op)
+		{
+			case "addFlight":
+				return t -> f -> rm.addFlight(f, 1, 0);
+			case "queryFlight":
+				return t -> f -> rm.queryFlight(f) >= 0;
+			case "queryFlightPrice":
+				return t -> f -> rm.queryFlightPrice(f) >= 0;
+			case "reserveFlight":
+				return t -> f -> rm.reserveFlight(1, f);
+			case "deleteCustomer":
+			{
+				// each thread deletes its own customers; their reservations follow the key distribution
+				final int[][] pools = new int[threads][DELETE_POOL];
+				for (int t = 0; t < threads; t++)
+				{
+					for (int i = 0; i < DELETE_POOL; i++)
+					{
+						int cid = t * DELETE_POOL + i + 1;
+						pools[t][i] = cid;
+						rm.writeData(Customer.getKey(cid), customerWith(rm, cid, keys));
+					}
+				}
+				return t -> {
+					final int[] pool = pools[t];
+					final int[] next = {0};
+					return f -> next[0] < pool.length && rm.deleteCustomer(pool[next[0]++]);
+				};
+			}
+			case "getBill":
+			{
+				// one customer per flight number, so bills are picked by the same distribution
+				final Customer[] customers = new Customer[flights];
+				for (int c = 0; c < flights; c++)
+				{
+					customers[c] = customerWith(rm, c + 1, keys);
+				}
+				return t -> f -> customers[f].getBill().length() > 0;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown op: " + op);
+		}
+	}
+
+	private static Customer customerWith(ResourceManager rm, int cid, int[] keys) throws Exception
+	{
+		Customer customer = new Customer(cid);
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for (int i = 0; i < ITEMS_PER_CUSTOMER; i++)
+		{
+			int f = keys[rnd.nextInt(keys.length)];
+			rm.reserveFlight(cid, f);
+			customer.reserve(Flight.getKey(f), String.valueOf(f), rm.queryFlightPrice(f));
+		}
+		return customer;
+	}
+
+	// Runs the fixture on threads workers for the given time; returns {ops, elapsed ns, bytes allocated}
+	private static long[] measure(Fixture fixture, final int[] keys, int threads, int seconds) throws Exception
+	{
+		final com.sun.management.ThreadMXBean mx = allocationCounter();
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++)
+		{
+			final Op op = fixture.forThread(t);
+			Thread w = new Thread(() -> {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				long done = 0;
+				try
+				{
+					start.await();
+					long before = mx == null ? 0 : mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+					long end = System.nanoTime() + seconds * 1000000000L;
+					// check the clock every 64 ops so nanoTime does not dominate cheap reads
+					outer:
+					while (System.nanoTime() < end)
+					{
+						for (int i = 0; i < 64; i++)
+						{
+							if (!op.run(keys[rnd.nextInt(keys.length)]))
+							{
+								break outer;
+							}
+							done++;
+						}
+					}
+					if (mx != null)
+					{
+						bytes.addAndGet(mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before);
+					}
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+				ops.addAndGet(done);
+			}, "bench-" + t);
+			workers.add(w);
+			w.start();
+		}
+		long began = System.nanoTime();
+		start.countDown();
+		for (Thread w : workers)
+		{
+			w.join();
+		}
+		return new long[] {ops.get(), System.nanoTime() - began, bytes.get()};
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCounter()
+	{
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (mx instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)mx).isThreadAllocatedMemorySupported())
+		{
+			return (com.sun.management.ThreadMXBean)mx;
+		}
+		return null;
+	}
+
+	// A table of 64K flight numbers to draw from: every flight equally often
+	private static int[] uniform(int flights)
+	{
+		int[] keys = new int[1 << 16];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = i % flights;
+		}
+		return keys;
+	}
+
+	// A table of 64K flight numbers to draw from, flight k appearing in proportion to
+	// 1/(k+1)^s. A uniform pick from the table is then a Zipfian pick of a flight.
+	private static int[] zipfian(int flights, double s)
+	{
+		double[] cdf = new double[flights];
+		double sum = 0;
+		for (int k = 0; k < flights; k++)
+		{
+			sum += 1.0 / Math.pow(k + 1, s);
+			cdf[k] = sum;
+		}
+		int[] keys = new int[1 << 16];
+		for (int i = 0; i < keys.length; i++)
+		{
+			int k = Arrays.binarySearch(cdf, (i + 0.5) / keys.length * sum);
+			keys[i] = Math.min(k < 0 ? -k - 1 : k, flights - 1);
+		}
+		return keys;
+	}
+}
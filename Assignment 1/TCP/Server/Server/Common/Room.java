@@ -19,8 +19,7 @@ public class Room extends ReservableItem
 
 	public static String getKey(String location)
 	{
-		String s = "room-" + location;
-		return s.toLowerCase();
+		return LocationDictionary.roomKey(location);
 	}
 }
 
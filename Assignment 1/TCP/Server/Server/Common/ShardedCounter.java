@@ -0,0 +1,180 @@
+package Server.Common;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Inventory counter for a "hot" reservable item. The available capacity is split
+// across per-core shards so that concurrent reservations on the same flight/location
+// don't all CAS the same word. A thread takes from its home shard first; when that
+// shard runs dry it steals half of the fullest shard before giving up.
+//
+// Units being stolen are in neither shard for a moment, so take() only reports sold out
+// after a scan of empty shards during which no steal was in progress.
+//
+// available() is a plain sum over the shards, so under concurrent updates it is
+// bounded-stale: off by the in-flight take/release calls, plus the units of any steal in
+// progress (up to half a shard each).
+public class ShardedCounter
+{
+	// 16 ints = 64 bytes, keeps each shard on its own cache line
+	private static final int STRIDE = 16;
+
+	private final int m_nShards;
+	private final AtomicIntegerArray m_cells;
+	private final LongAdder m_reserved = new LongAdder();
+	// steals begun and finished; equal when no units are in transit between shards
+	private final AtomicLong m_movesStarted = new AtomicLong();
+	private final AtomicLong m_movesDone = new AtomicLong();
+
+	public ShardedCounter(int available, int reserved)
+	{
+		this(defaultShards(), available, reserved);
+	}
+
+	public ShardedCounter(int shards, int available, int reserved)
+	{
+		m_nShards = Math.max(1, shards);
+		m_cells = new AtomicIntegerArray(m_nShards * STRIDE);
+		m_reserved.add(reserved);
+		add(available);
+	}
+
+	private static int defaultShards()
+	{
+		int n = Runtime.getRuntime().availableProcessors();
+		return Integer.highestOneBit(Math.max(1, n - 1)) << 1;
+	}
+
+	private int homeShard()
+	{
+		long id = Thread.currentThread().getId();
+		return (int)((id ^ (id >>> 16)) & 0x7fffffff) % m_nShards;
+	}
+
+	// Takes one unit of capacity; returns false if the item is sold out
+	public boolean take()
+	{
+		int home = homeShard();
+		while (true)
+		{
+			if (tryTake(home))
+			{
+				m_reserved.increment();
+				return true;
+			}
+			if (!rebalance(home))
+			{
+				return false;
+			}
+		}
+	}
+
+	private boolean tryTake(int shard)
+	{
+		int idx = shard * STRIDE;
+		int v;
+		while ((v = m_cells.get(idx)) > 0)
+		{
+			if (m_cells.compareAndSet(idx, v, v - 1))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Moves half of the fullest shard into the given (dry) shard. Returns false
+	// once every shard is empty and no units are in transit.
+	private boolean rebalance(int home)
+	{
+		while (true)
+		{
+			long started = m_movesStarted.get();
+			long done = m_movesDone.get();
+			int richest = -1;
+			int most = 0;
+			for (int i = 0; i < m_nShards; i++)
+			{
+				int v = m_cells.get(i * STRIDE);
+				if (v > most)
+				{
+					most = v;
+					richest = i;
+				}
+			}
+			if (richest < 0)
+			{
+				if (started == done && m_movesStarted.get() == started)
+				{
+					return false;
+				}
+				// another thread is moving units between shards; look again once they land
+				Thread.onSpinWait();
+				continue;
+			}
+			if (richest == home)
+			{
+				return true;
+			}
+			int moved = (most + 1) / 2;
+			m_movesStarted.incrementAndGet();
+			boolean taken = m_cells.compareAndSet(richest * STRIDE, most, most - moved);
+			if (taken)
+			{
+				m_cells.addAndGet(home * STRIDE, moved);
+			}
+			m_movesDone.incrementAndGet();
+			if (taken)
+			{
+				return true;
+			}
+		}
+	}
+
+	// Adds capacity, spread evenly across the shards
+	public void add(int count)
+	{
+		if (count <= 0)
+		{
+			return;
+		}
+		int each = count / m_nShards;
+		int rest = count % m_nShards;
+		for (int i = 0; i < m_nShards; i++)
+		{
+			int n = each + (i < rest ? 1 : 0);
+			if (n > 0)
+			{
+				m_cells.addAndGet(i * STRIDE, n);
+			}
+		}
+	}
+
+	// Gives back previously reserved units (customer deleted or reservation removed)
+	public void release(int count)
+	{
+		m_cells.addAndGet(homeShard() * STRIDE, count);
+		m_reserved.add(-count);
+	}
+
+	public int available()
+	{
+		int sum = 0;
+		for (int i = 0; i < m_nShards; i++)
+		{
+			sum += m_cells.get(i * STRIDE);
+		}
+		return sum;
+	}
+
+	public int reserved()
+	{
+		return (int)m_reserved.sum();
+	}
+
+	public int shards()
+	{
+		return m_nShards;
+	}
+}
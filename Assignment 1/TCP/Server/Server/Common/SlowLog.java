@@ -0,0 +1,142 @@
+package Server.Common;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log of requests slower than -Dslowlog.millis (default 1000, 0 turns it off), with their
+// arguments and where the time went:
+//
+//   parse       decoding the request line
+//   queue       waiting to be started after it was read
+//   exec        running it and encoding the reply (for the Middleware, including the RM calls)
+//   downstream  time in RM round trips, summed over the calls; parallel calls can add up to more than exec
+//   write       writing the reply to the socket
+//
+// Lines go to -Dslowlog.file, or stdout. The request thread only hands over the numbers
+// and the argument array; formatting and the write happen on a writer thread, and entries
+// are dropped (and counted) if it falls behind.
+public final class SlowLog
+{
+	private static final long s_thresholdNanos = Long.getLong("slowlog.millis", 1000) * 1000000L;
+	private static final String s_file = System.getProperty("slowlog.file");
+	private static final int MAX_ARGS_CHARS = 512;
+
+	private static final class Entry
+	{
+		long when;
+		String method, traceId;
+		Object[] args;
+		boolean ok;
+		long parse, queue, exec, downstream, downstreamCalls, write;
+	}
+
+	private static final BlockingQueue<Entry> s_queue = new ArrayBlockingQueue<Entry>(4096);
+	private static final LongAdder s_dropped = new LongAdder();
+	private static volatile String s_service = "unknown";
+	private static Thread s_writer;
+
+	private SlowLog()
+	{
+	}
+
+	// Name this process logs under ("mw:5010", "rm:Flights", ...); starts the writer
+	public static synchronized void start(String service)
+	{
+		s_service = service;
+		if (s_thresholdNanos <= 0 || s_writer != null)
+		{
+			return;
+		}
+		s_writer = new Thread(SlowLog::drain, "slowlog");
+		s_writer.setDaemon(true);
+		s_writer.start();
+	}
+
+	public static boolean isSlow(long totalNanos)
+	{
+		return s_thresholdNanos > 0 && totalNanos >= s_thresholdNanos;
+	}
+
+	// Phases in nanoseconds; args is rendered later, so it must not be modified afterwards
+	public static void record(String method, Object[] args, String traceId, boolean ok,
+		long parse, long queue, long exec, long downstream, long downstreamCalls, long write)
+	{
+		Entry e = new Entry();
+		e.when = System.currentTimeMillis();
+		e.method = method;
+		e.args = args;
+		e.traceId = traceId;
+		e.ok = ok;
+		e.parse = parse;
+		e.queue = queue;
+		e.exec = exec;
+		e.downstream = downstream;
+		e.downstreamCalls = downstreamCalls;
+		e.write = write;
+		if (!s_queue.offer(e))
+		{
+			s_dropped.increment();
+		}
+	}
+
+	public static long dropped()
+	{
+		return s_dropped.sum();
+	}
+
+	private static String format(Entry e, SimpleDateFormat time)
+	{
+		long total = e.parse + e.queue + e.exec + e.write;
+		String args = Arrays.deepToString(e.args);
+		if (args.length() > MAX_ARGS_CHARS)
+		{
+			args = args.substring(0, MAX_ARGS_CHARS) + "...";
+		}
+		return String.format("%s %s SLOW %s %.1fms%s [parse=%.2f queue=%.2f exec=%.2f downstream=%.2f/%d write=%.2f] trace=%s args=%s",
+			time.format(new Date(e.when)), s_service, e.method, total / 1e6, e.ok ? "" : " FAILED",
+			e.parse / 1e6, e.queue / 1e6, e.exec / 1e6, e.downstream / 1e6, e.downstreamCalls, e.write / 1e6,
+			e.traceId == null ? "-" : e.traceId, args);
+	}
+
+	private static void drain()
+	{
+		SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		try (Writer out = s_file == null ? new OutputStreamWriter(System.out) : new BufferedWriter(new FileWriter(s_file, true)))
+		{
+			long reportedDrops = 0;
+			while (true)
+			{
+				Entry e = s_queue.take();
+				out.write(format(e, time));
+				out.write(System.lineSeparator());
+				long drops = s_dropped.sum();
+				if (drops != reportedDrops)
+				{
+					out.write(s_service + " slow log dropped " + (drops - reportedDrops) + " entries" + System.lineSeparator());
+					reportedDrops = drops;
+				}
+				if (s_queue.isEmpty())
+				{
+					out.flush();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Trace.error("SlowLog cannot write " + (s_file == null ? "stdout" : s_file) + ": " + e.getMessage());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package Server.Common;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads the span files written by SpanSink (and the client's SpanLog) and stitches them
+// into per-trace trees.
+//
+//   java Server.Common.SpanReport [-n 20] file...         slowest traces
+//   java Server.Common.SpanReport -t <traceId> file...    one trace as a tree
+//
+// In the tree, offsets are from the start of the root span and '*' marks the critical
+// path: from each span, the child that finished last, i.e. the one the parent was
+// waiting on. Across hosts the offsets are only as good as the clock sync.
+public class SpanReport
+{
+	private static class Span
+	{
+		String traceId, spanId, parentId, service, name;
+		long start, duration;
+		boolean ok;
+		final List<Span> children = new ArrayList<Span>();
+
+		long end()
+		{
+			return start + duration;
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		String trace = null;
+		int top = 20;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-t") && i + 1 < args.length)
+			{
+				trace = args[++i];
+			}
+			else if (args[i].equals("-n") && i + 1 < args.length)
+			{
+				top = Integer.parseInt(args[++i]);
+			}
+			else
+			{
+				files.add(args[i]);
+			}
+		}
+		if (files.isEmpty())
+		{
+			System.err.println("Usage: java Server.Common.SpanReport [-t traceId | -n count] spanfile...");
+			System.exit(1);
+		}
+
+		Map<String, List<Span>> traces = new HashMap<String, List<Span>>();
+		for (String file : files)
+		{
+			read(file, trace, traces);
+		}
+		if (trace != null)
+		{
+			List<Span> spans = traces.get(trace);
+			if (spans == null)
+			{
+				System.out.println("No spans for trace " + trace);
+				return;
+			}
+			for (Span root : link(spans))
+			{
+				print(root, root.start, "", true);
+			}
+		}
+		else
+		{
+			slowest(traces, top);
+		}
+	}
+
+	private static void read(String file, String only, Map<String, List<Span>> traces) throws IOException
+	{
+		try (BufferedReader in = new BufferedReader(new FileReader(file)))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String[] f = line.split("\t");
+				if (f.length != 8 || (only != null && !only.equals(f[0])))
+				{
+					continue;
+				}
+				Span s = new Span();
+				s.traceId = f[0];
+				s.spanId = f[1];
+				s.parentId = f[2];
+				s.service = f[3];
+				s.name = f[4];
+				s.start = Long.parseLong(f[5]);
+				s.duration = Long.parseLong(f[6]);
+				s.ok = f[7].equals("ok");
+				traces.computeIfAbsent(s.traceId, k -> new ArrayList<Span>()).add(s);
+			}
+		}
+	}
+
+	// Hangs every span under its parent; spans whose parent is missing (not traced, or in a
+	// file that was not given) become roots
+	private static List<Span> link(List<Span> spans)
+	{
+		Map<String, Span> byId = new HashMap<String, Span>();
+		for (Span s : spans)
+		{
+			byId.put(s.spanId, s);
+		}
+		List<Span> roots = new ArrayList<Span>();
+		for (Span s : spans)
+		{
+			Span parent = byId.get(s.parentId);
+			if (parent == null)
+			{
+				roots.add(s);
+			}
+			else
+			{
+				parent.children.add(s);
+			}
+		}
+		Comparator<Span> byStart = Comparator.comparingLong(s -> s.start);
+		roots.sort(byStart);
+		for (Span s : spans)
+		{
+			s.children.sort(byStart);
+		}
+		return roots;
+	}
+
+	private static void print(Span s, long origin, String indent, boolean critical)
+	{
+		System.out.println(String.format("%s %9.3fms %9.3fms %s%s %s%s",
+			critical ? "*" : " ", (s.start - origin) / 1000.0, s.duration / 1000.0,
+			indent, s.service, s.name, s.ok ? "" : " FAILED"));
+		Span last = null;
+		for (Span c : s.children)
+		{
+			if (last == null || c.end() > last.end())
+			{
+				last = c;
+			}
+		}
+		for (Span c : s.children)
+		{
+			print(c, origin, indent + "  ", critical && c == last);
+		}
+	}
+
+	private static void slowest(Map<String, List<Span>> traces, int top)
+	{
+		List<Span> roots = new ArrayList<Span>();
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		for (List<Span> spans : traces.values())
+		{
+			List<Span> r = link(spans);
+			Span longest = r.get(0);
+			for (Span s : r)
+			{
+				if (s.duration > longest.duration)
+				{
+					longest = s;
+				}
+			}
+			roots.add(longest);
+			sizes.put(longest.traceId, spans.size());
+		}
+		roots.sort((a, b) -> Long.compare(b.duration, a.duration));
+		System.out.println(String.format("%d traces; slowest %d:", roots.size(), Math.min(top, roots.size())));
+		for (int i = 0; i < Math.min(top, roots.size()); i++)
+		{
+			Span s = roots.get(i);
+			System.out.println(String.format("  %s %9.3fms %3d spans  %s %s%s", s.traceId, s.duration / 1000.0,
+				sizes.get(s.traceId), s.service, s.name, s.ok ? "" : " FAILED"));
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package Server.Common;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Local file sink for trace spans, one tab-separated line per span:
+//
+//   traceId  spanId  parentId  service  name  startMicros  durationMicros  ok|failed
+//
+// startMicros is wall-clock time since the epoch, so files from the client, Middleware
+// and RMs on one host (or NTP-synced hosts) line up; SpanReport stitches them into a
+// tree per trace. Enabled with -Dtrace.spans=<file>; otherwise record() does nothing.
+//
+// Requests never wait on the disk: spans go through a bounded queue to a writer thread,
+// and are dropped (and counted) if the queue is full.
+public final class SpanSink
+{
+	private static final String s_file = System.getProperty("trace.spans");
+	private static final BlockingQueue<String> s_queue = new ArrayBlockingQueue<String>(65536);
+	private static final LongAdder s_dropped = new LongAdder();
+	private static volatile String s_service = "unknown";
+	private static final long s_epochMicros = System.currentTimeMillis() * 1000;
+	private static final long s_nanoBase = System.nanoTime();
+	private static Thread s_writer;
+
+	private SpanSink()
+	{
+	}
+
+	public static boolean enabled()
+	{
+		return s_file != null;
+	}
+
+	// Name this process writes its spans under ("mw:5010", "rm:Flights", ...); starts the writer
+	public static synchronized void start(String service)
+	{
+		s_service = service;
+		if (s_file == null || s_writer != null)
+		{
+			return;
+		}
+		s_writer = new Thread(SpanSink::drain, "span-sink");
+		s_writer.setDaemon(true);
+		s_writer.start();
+	}
+
+	public static void record(String traceId, String spanId, String parentId, String name,
+		long startMicros, long durationMicros, boolean ok)
+	{
+		if (s_file == null)
+		{
+			return;
+		}
+		String line = traceId + '\t' + spanId + '\t' + (parentId == null ? "-" : parentId) + '\t' + s_service + '\t'
+			+ name + '\t' + startMicros + '\t' + durationMicros + '\t' + (ok ? "ok" : "failed");
+		if (!s_queue.offer(line))
+		{
+			s_dropped.increment();
+		}
+	}
+
+	// Wall-clock microseconds since the epoch, with nanoTime resolution
+	public static long nowMicros()
+	{
+		return s_epochMicros + (System.nanoTime() - s_nanoBase) / 1000;
+	}
+
+	public static long dropped()
+	{
+		return s_dropped.sum();
+	}
+
+	private static void drain()
+	{
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(s_file, true)))
+		{
+			while (true)
+			{
+				String line = s_queue.poll(1, TimeUnit.SECONDS);
+				if (line == null)
+				{
+					continue;
+				}
+				out.write(line);
+				out.newLine();
+				// flush once the burst is written, so the file is current when things go quiet
+				while ((line = s_queue.poll()) != null)
+				{
+					out.write(line);
+					out.newLine();
+				}
+				out.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			Trace.error("SpanSink cannot write " + s_file + ": " + e.getMessage());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
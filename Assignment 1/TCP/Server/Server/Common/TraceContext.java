@@ -0,0 +1,135 @@
+package Server.Common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// The request a thread is currently working for. Set by the TCP servers around dispatch.
+// For a traced request it holds the trace ID the client generated and the ID of the span
+// this server opened; RM calls made while it is set carry both IDs downstream so every hop
+// of a request lands in the span files under one trace ID (see SpanSink). Untraced
+// requests have neither. Either way, RM calls add their time to it for the slow log, and
+// it carries the request's deadline when the client gave a timeout.
+//
+// Work handed to another thread does not inherit it; wrap the task with wrap().
+public final class TraceContext
+{
+	private static final ThreadLocal<TraceContext> s_current = new ThreadLocal<TraceContext>();
+
+	public final String traceId;
+	public final String spanId;
+
+	// System.nanoTime() by which the client stops waiting, if it said
+	private final boolean m_hasDeadline;
+	private final long m_deadline;
+
+	private final LongAdder m_downstreamNanos = new LongAdder();
+	private final LongAdder m_downstreamCalls = new LongAdder();
+
+	public TraceContext(String traceId, String spanId)
+	{
+		this(traceId, spanId, -1, 0);
+	}
+
+	// With timeoutMillis >= 0 the request must be answered within that long of receivedNanos;
+	// traceId and spanId are null for a request the client did not trace
+	public TraceContext(String traceId, String spanId, long timeoutMillis, long receivedNanos)
+	{
+		this.traceId = traceId;
+		this.spanId = spanId;
+		m_hasDeadline = timeoutMillis >= 0;
+		m_deadline = receivedNanos + Math.max(0, timeoutMillis) * 1000000L;
+	}
+
+	public boolean hasDeadline()
+	{
+		return m_hasDeadline;
+	}
+
+	// Whole milliseconds left before the deadline, 0 once it has (nearly) passed; only
+	// meaningful with hasDeadline()
+	public long remainingMillis()
+	{
+		return Math.max(0, (m_deadline - System.nanoTime()) / 1000000L);
+	}
+
+	public boolean expired()
+	{
+		return m_hasDeadline && remainingMillis() == 0;
+	}
+
+	public boolean traced()
+	{
+		return traceId != null;
+	}
+
+	// Called by the RM clients, possibly from several pool threads at once
+	public void addDownstream(long nanos)
+	{
+		m_downstreamNanos.add(nanos);
+		m_downstreamCalls.increment();
+	}
+
+	public long downstreamNanos()
+	{
+		return m_downstreamNanos.sum();
+	}
+
+	public long downstreamCalls()
+	{
+		return m_downstreamCalls.sum();
+	}
+
+	public static TraceContext current()
+	{
+		return s_current.get();
+	}
+
+	// Makes ctx current and returns the one it replaces, for restore()
+	public static TraceContext enter(TraceContext ctx)
+	{
+		TraceContext previous = s_current.get();
+		s_current.set(ctx);
+		return previous;
+	}
+
+	public static void restore(TraceContext previous)
+	{
+		if (previous == null)
+		{
+			s_current.remove();
+		}
+		else
+		{
+			s_current.set(previous);
+		}
+	}
+
+	// 64 random bits as 16 hex digits, for trace and span IDs
+	public static String newId()
+	{
+		String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	// Runs task under the caller's trace context, on whatever thread ends up running it
+	public static <T> Supplier<T> wrap(final Supplier<T> task)
+	{
+		final TraceContext ctx = s_current.get();
+		if (ctx == null)
+		{
+			return task;
+		}
+		return () -> {
+			TraceContext previous = enter(ctx);
+			try
+			{
+				return task.get();
+			}
+			finally
+			{
+				restore(previous);
+			}
+		};
+	}
+}
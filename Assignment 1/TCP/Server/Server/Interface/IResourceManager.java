@@ -201,6 +201,22 @@ public interface IResourceManager extends Remote
     public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room)
 	throws RemoteException; 
 
+    /**
+     * Give back a customer's reservation of one item ("flight-12", "car-montreal", ...).
+     *
+     * @return Success
+     */
+    public boolean cancelReservation(int customerID, String itemKey)
+	throws RemoteException;
+
+    /**
+     * Give back a customer's reservations of several items.
+     *
+     * @return Success (false if the customer didn't hold one of the items)
+     */
+    public boolean cancelReservations(int customerID, Vector<String> itemKeys)
+	throws RemoteException;
+
     /**
      * Convenience for probing the resource manager.
      *
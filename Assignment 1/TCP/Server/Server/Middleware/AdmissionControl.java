@@ -0,0 +1,224 @@
+package Server.Middleware;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds how many requests the Middleware executes at once, so that under overload the
+ * excess is turned away quickly instead of every request slowing down together.
+ *
+ * The limit adapts to observed latency (a gradient limiter). Execution times are averaged
+ * over windows of at least 20 requests, and each window's average is compared with a
+ * slowly moving long-term one: while recent requests run slower than usual the limit
+ * shrinks in proportion, and when they don't, it grows by about sqrt(limit). Windows
+ * smooth out the mix of cheap lookups and expensive bundles. The limit stays within
+ * [-Dmw.limit.min, -Dmw.limit.max] and starts at -Dmw.limit.initial.
+ *
+ * A request that finds the limit reached waits in the queue of its priority class
+ * (HIGH: reservations and customer changes, NORMAL: lookups, LOW: searches), each
+ * bounded (-Dmw.queue.high/normal/low); freed slots go to the highest class first. It
+ * is rejected at once when its queue is full, and after waiting -Dmw.queue.maxWaitMillis
+ * or until its deadline, whichever comes first.
+ */
+public class AdmissionControl {
+
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    /** Thrown when a request is turned away; it has not been started. */
+    public static class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final double TOLERANCE = 1.5;   // recent latency may be this much above normal before the limit shrinks
+    private static final double SMOOTHING = 0.2;
+    private static final int MIN_WINDOW = 20;
+
+    private final int minLimit = Integer.getInteger("mw.limit.min", 4);
+    private final int maxLimit = Integer.getInteger("mw.limit.max", 512);
+    private final long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("mw.queue.maxWaitMillis", 1000));
+    private final int[] capacity = {
+            Integer.getInteger("mw.queue.high", 128),
+            Integer.getInteger("mw.queue.normal", 64),
+            Integer.getInteger("mw.queue.low", 16)};
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<ArrayDeque<Waiter>> queues = newQueues();
+    private double limit = Integer.getInteger("mw.limit.initial", 32);
+    private int inflight;
+    private double shortRtt;
+    private double longRtt;
+    private long windowSum;
+    private int windowCount;
+    private int windowMaxInflight;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private static final class Waiter {
+        final Condition ready;
+        boolean admitted;
+
+        Waiter(Condition ready) {
+            this.ready = ready;
+        }
+    }
+
+    // One waiting queue per priority class, indexed by ordinal
+    private static List<ArrayDeque<Waiter>> newQueues() {
+        List<ArrayDeque<Waiter>> queues = new ArrayList<>();
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+        return queues;
+    }
+
+    /** Which class a Middleware method belongs to. */
+    public static Priority priorityOf(String method) {
+        if (method.startsWith("reserve") || method.equals("bundle") || method.startsWith("newCustomer")
+                || method.equals("deleteCustomer") || method.equals("cancelReservations")) {
+            return Priority.HIGH;
+        }
+        if (method.equals("searchBundle") || method.equals("queryRange") || method.equals("queryCheapest")
+                || method.equals("queryLocations")) {
+            return Priority.LOW;
+        }
+        return Priority.NORMAL;
+    }
+
+    /**
+     * Blocks until the request may run, then the caller must call {@link #release} when it is
+     * done. maxWaitNanos bounds the wait further (the time left before the request's deadline),
+     * or is negative for no extra bound.
+     */
+    public void acquire(Priority priority, long maxWaitNanos) throws RejectedException, InterruptedException {
+        lock.lock();
+        try {
+            ArrayDeque<Waiter> queue = queues.get(priority.ordinal());
+            if (inflight < (int) limit && nobodyAhead(priority)) {
+                inflight++;
+                windowMaxInflight = Math.max(windowMaxInflight, inflight);
+                admitted.increment();
+                return;
+            }
+            if (queue.size() >= capacity[priority.ordinal()]) {
+                rejected.increment();
+                throw new RejectedException("Overloaded, retry later");
+            }
+            Waiter w = new Waiter(lock.newCondition());
+            queue.addLast(w);
+            queued.increment();
+            long wait = maxWaitNanos < 0 ? this.maxWaitNanos : Math.min(maxWaitNanos, this.maxWaitNanos);
+            try {
+                while (!w.admitted && wait > 0) {
+                    wait = w.ready.awaitNanos(wait);
+                }
+            } catch (InterruptedException e) {
+                if (w.admitted) {
+                    // a slot was handed over just as we were interrupted; pass it on
+                    inflight--;
+                    handOff();
+                }
+                throw e;
+            } finally {
+                if (!w.admitted) queue.remove(w);
+            }
+            if (!w.admitted) {
+                rejected.increment();
+                throw new RejectedException("Overloaded, retry later");
+            }
+            admitted.increment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Ends a request admitted by {@link #acquire}; execNanos is how long it ran, queueing excluded. */
+    public void release(long execNanos) {
+        lock.lock();
+        try {
+            inflight--;
+            adjust(execNanos);
+            handOff();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds lock. Hands free slots to waiters, highest class first; they count as in flight from here
+    private void handOff() {
+        for (ArrayDeque<Waiter> queue : queues) {
+            while (inflight < (int) limit && !queue.isEmpty()) {
+                Waiter w = queue.pollFirst();
+                w.admitted = true;
+                inflight++;
+                windowMaxInflight = Math.max(windowMaxInflight, inflight);
+                w.ready.signal();
+            }
+        }
+    }
+
+    /** One line of current state and counts since start, for the stats reply. */
+    public Vector<String> snapshot() {
+        lock.lock();
+        try {
+            Vector<String> out = new Vector<>();
+            out.add(String.format("admission limit=%d inflight=%d queued=%d/%d/%d admitted=%d waited=%d rejected=%d rtt=%.3fms/%.3fms",
+                    (int) limit, inflight, queues.get(0).size(), queues.get(1).size(), queues.get(2).size(),
+                    admitted.sum(), queued.sum(), rejected.sum(), shortRtt / 1e6, longRtt / 1e6));
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds lock
+    private boolean nobodyAhead(Priority priority) {
+        for (int p = 0; p <= priority.ordinal(); p++) {
+            if (!queues.get(p).isEmpty()) return false;
+        }
+        return true;
+    }
+
+    // Caller holds lock. Gradient limiter: once per window, shrink when the window ran slower
+    // than the long-term norm, otherwise grow by a queue allowance of sqrt(limit).
+    private void adjust(long sample) {
+        windowSum += sample;
+        windowCount++;
+        if (windowCount < Math.max(MIN_WINDOW, (int) limit)) {
+            return;
+        }
+        shortRtt = (double) windowSum / windowCount;
+        int busiest = windowMaxInflight;
+        windowSum = 0;
+        windowCount = 0;
+        windowMaxInflight = inflight;
+        if (longRtt == 0) {
+            longRtt = shortRtt;
+            return;
+        }
+        longRtt += (shortRtt - longRtt) * 0.05;
+        // after a lasting shift to slower requests (e.g. more bundles in the mix), let the norm
+        // catch up twice as fast instead of leaving the limit pinned at the gradient floor
+        if (shortRtt / longRtt > 2) {
+            longRtt += (shortRtt - longRtt) * 0.05;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double next = limit * gradient + Math.sqrt(limit);
+        // a lightly used limit tells nothing about how much more the system could take
+        if (next > limit && busiest < limit / 2) {
+            return;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + next * SMOOTHING));
+    }
+}
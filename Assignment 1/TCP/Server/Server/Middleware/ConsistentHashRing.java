@@ -0,0 +1,83 @@
+package Server.Middleware;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent-hash ring with virtual nodes. Each physical node is placed on the
+ * ring {@code vnodes} times so keys spread evenly and adding a node only moves
+ * roughly 1/N of the keys.
+ *
+ * Not thread-safe; callers guard it (see {@link ResourceManagerGroup}).
+ */
+public class ConsistentHashRing<T> {
+
+    public static final int DEFAULT_VNODES = 128;
+
+    private final int vnodes;
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final LinkedHashMap<String, T> nodes = new LinkedHashMap<>();
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VNODES);
+    }
+
+    public ConsistentHashRing(int vnodes) {
+        this.vnodes = Math.max(1, vnodes);
+    }
+
+    public void add(String nodeId, T node) {
+        if (nodes.put(nodeId, node) != null) {
+            remove(nodeId);
+            nodes.put(nodeId, node);
+        }
+        for (int i = 0; i < vnodes; i++) {
+            ring.put(hash(nodeId + "#" + i), node);
+        }
+    }
+
+    public void remove(String nodeId) {
+        T node = nodes.remove(nodeId);
+        if (node == null) return;
+        for (int i = 0; i < vnodes; i++) {
+            ring.remove(hash(nodeId + "#" + i), node);
+        }
+    }
+
+    // Independent ring with the same nodes, e.g. to work out where keys land after a change
+    public ConsistentHashRing<T> copy() {
+        ConsistentHashRing<T> c = new ConsistentHashRing<>(vnodes);
+        c.ring.putAll(ring);
+        c.nodes.putAll(nodes);
+        return c;
+    }
+
+    public T get(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, T> e = ring.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    public Collection<T> nodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    // FNV-1a followed by the murmur3 64-bit finalizer for good avalanche on short keys
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,50 @@
+package Server.Middleware;
+
+/**
+ * Which customers this Middleware instance owns when several instances share the
+ * same RMs. Customer IDs are partitioned by {@code id mod count}; instance
+ * {@code index} owns the IDs with that remainder and only hands out new IDs from
+ * its own residue class, so routing needs nothing but the ID.
+ *
+ * Clients route with the same rule (see Client.TCPClient), listing the Middleware
+ * endpoints in index order. Configured with -Dmw.partition=index/count (default 0/1).
+ */
+public class CustomerPartition {
+
+    public static final CustomerPartition SINGLE = new CustomerPartition(0, 1);
+
+    public final int index;
+    public final int count;
+
+    public CustomerPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Bad partition " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    public static CustomerPartition parse(String spec) {
+        String[] parts = spec.trim().split("/");
+        if (parts.length != 2) throw new IllegalArgumentException("Expected index/count, got " + spec);
+        return new CustomerPartition(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+    }
+
+    public static CustomerPartition fromSystemProperties() {
+        String spec = System.getProperty("mw.partition");
+        return spec == null ? SINGLE : parse(spec);
+    }
+
+    public static int ownerOf(int customerID, int count) {
+        return Math.floorMod(customerID, count);
+    }
+
+    public boolean owns(int customerID) {
+        return ownerOf(customerID, count) == index;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
@@ -0,0 +1,35 @@
+package Server.Middleware;
+
+import Server.Common.Customer;
+
+import java.util.function.Consumer;
+
+/**
+ * Where the Middleware keeps its customers.
+ *
+ * Callers mutate a customer while holding {@link #lockFor(int)}: they re-read it
+ * with {@link #get(int)}, change it and hand it back with {@link #update(Customer)}.
+ * An instance returned by get() is not guaranteed to stay the live copy once the
+ * lock is released.
+ */
+public interface CustomerStore {
+
+    Customer get(int customerID);
+
+    /** Creates an empty customer; false if the ID is already taken. */
+    boolean create(int customerID);
+
+    /** Persists a customer changed under its lock. */
+    void update(Customer customer);
+
+    boolean remove(int customerID);
+
+    boolean contains(int customerID);
+
+    Object lockFor(int customerID);
+
+    /** Visits every customer (used to rebuild in-memory indexes on start-up). */
+    void forEach(Consumer<Customer> action);
+
+    void close();
+}
@@ -0,0 +1,481 @@
+package Server.Middleware;
+
+import Server.Common.Customer;
+import Server.Common.Trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent customer store, partitioned by customer ID into independent shards.
+ *
+ * Each shard is a directory of append-only segment files. Every change to a
+ * customer appends the customer's full record (or a tombstone); an in-memory
+ * index maps the ID to the latest record, and a bounded LRU cache keeps hot
+ * customers deserialized so queryCustomerInfo stays a memory lookup. Heap use is
+ * the index plus the caches, not the customer population.
+ *
+ * When more than half of a shard's bytes are superseded records it is compacted:
+ * the shard starts a new segment, and a background thread copies the live records
+ * of the old ones to fresh segments numbered in between, then swaps them in and
+ * deletes the old ones. On start-up the segments are replayed in order; a torn
+ * record at the tail is truncated.
+ *
+ * Record layout: int payloadLength, int crc32(payload), payload where payload is
+ * byte type (PUT/DEL), then for PUT the {@link Customer#writeTo} encoding, for
+ * DEL the customer ID.
+ */
+public class DurableCustomerStore implements CustomerStore {
+
+    private static final byte PUT = 1;
+    private static final byte DEL = 2;
+    private static final int HEADER = 8;
+
+    private final Shard[] shards;
+
+    // copies live records off the shard locks, one shard at a time
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "MW-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DurableCustomerStore(File dir, int nShards, int cachePerShard, long segmentBytes, boolean fsync) throws IOException {
+        shards = new Shard[Math.max(1, nShards)];
+        long total = 0;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(new File(dir, String.format("shard-%03d", i)), cachePerShard, segmentBytes, fsync, compactor);
+            total += shards[i].index.size();
+        }
+        Trace.info("MW::DurableCustomerStore opened " + dir + " with " + shards.length + " shards, " + total + " customers");
+    }
+
+    // Configured with -Dmw.customers.dir (required), .shards, .cache, .segmentBytes and .fsync
+    public static DurableCustomerStore fromSystemProperties() throws IOException {
+        return new DurableCustomerStore(
+                new File(System.getProperty("mw.customers.dir")),
+                Integer.getInteger("mw.customers.shards", 16),
+                Integer.getInteger("mw.customers.cache", 10000),
+                Long.getLong("mw.customers.segmentBytes", 64L << 20),
+                Boolean.getBoolean("mw.customers.fsync"));
+    }
+
+    // IDs are allocated as seq * stride + offset and split mod N over Middlewares, so the low
+    // bits are anything but uniform; mix them first (murmur3 fmix32, independent of lockFor's
+    // top bits) so every instance spreads its customers over all shards
+    private Shard shard(int customerID) {
+        int h = customerID;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    @Override
+    public Customer get(int customerID) {
+        return shard(customerID).get(customerID);
+    }
+
+    @Override
+    public boolean create(int customerID) {
+        return shard(customerID).create(customerID);
+    }
+
+    @Override
+    public void update(Customer customer) {
+        shard(customer.getID()).put(customer);
+    }
+
+    @Override
+    public boolean remove(int customerID) {
+        return shard(customerID).remove(customerID);
+    }
+
+    @Override
+    public boolean contains(int customerID) {
+        return shard(customerID).contains(customerID);
+    }
+
+    // Shards serialize their own I/O; per-customer locks are striped on top of that
+    @Override
+    public Object lockFor(int customerID) {
+        return shard(customerID).locks[(customerID * 0x9E3779B9) >>> 26];
+    }
+
+    @Override
+    public void forEach(Consumer<Customer> action) {
+        for (Shard s : shards) s.forEach(action);
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        for (Shard s : shards) s.close();
+    }
+
+    private static final class Shard {
+        private final File dir;
+        private final long segmentBytes;
+        private final boolean fsync;
+        private final Executor compactor;
+        private final Object[] locks = new Object[64];
+
+        // customer ID -> (segment << 32 | offset) of its latest PUT record
+        private final HashMap<Integer, Long> index = new HashMap<>();
+        private final LinkedHashMap<Integer, Customer> cache;
+        private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+
+        private int activeId;
+        private FileChannel active;
+        private long activeSize;
+        private long totalBytes;
+        private long garbageBytes;
+
+        // set while the segments up to sealedId are being compacted; sealedBytes and
+        // sealedGarbage are the parts of totalBytes and garbageBytes that live in them
+        private boolean compacting;
+        private int sealedId;
+        private long sealedBytes;
+        private long sealedGarbage;
+        private long retryBytes;    // after a failed compaction, don't retry below this size
+        private boolean closed;
+
+        Shard(File dir, int cacheSize, long segmentBytes, boolean fsync, Executor compactor) throws IOException {
+            this.dir = dir;
+            this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+            this.fsync = fsync;
+            this.compactor = compactor;
+            for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+            this.cache = new LinkedHashMap<Integer, Customer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Customer> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            recover();
+        }
+
+        private File segmentFile(int id) {
+            return new File(dir, String.format("seg-%06d.log", id));
+        }
+
+        private void recover() throws IOException {
+            File[] files = dir.listFiles((d, name) -> name.startsWith("seg-") && name.endsWith(".log"));
+            List<Integer> ids = new ArrayList<>();
+            if (files != null) {
+                for (File f : files) ids.add(Integer.parseInt(f.getName().substring(4, 10)));
+            }
+            Collections.sort(ids);
+            for (int id : ids) {
+                FileChannel ch = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.put(id, ch);
+                long valid = replay(id, ch);
+                if (valid < ch.size()) {
+                    Trace.warn("MW::DurableCustomerStore truncating torn tail of " + segmentFile(id) + " at " + valid);
+                    ch.truncate(valid);
+                }
+                totalBytes += valid;
+                activeId = id;
+                activeSize = valid;
+            }
+            if (segments.isEmpty()) {
+                roll();
+            } else {
+                active = segments.get(activeId);
+                active.position(activeSize);
+            }
+        }
+
+        // Applies the records of one segment to the index; returns the length of its valid prefix
+        private long replay(int id, FileChannel ch) throws IOException {
+            long pos = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (true) {
+                header.clear();
+                if (ch.read(header, pos) < HEADER) return pos;
+                header.flip();
+                int len = header.getInt();
+                int crc = header.getInt();
+                if (len <= 0 || pos + HEADER + len > ch.size()) return pos;
+                ByteBuffer payload = ByteBuffer.allocate(len);
+                ch.read(payload, pos + HEADER);
+                if (crc(payload.array()) != crc) return pos;
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+                byte type = in.readByte();
+                int cid = in.readInt();
+                Long old;
+                if (type == PUT) {
+                    old = index.put(cid, ((long) id << 32) | pos);
+                } else {
+                    old = index.remove(cid);
+                    garbageBytes += HEADER + len;
+                }
+                if (old != null) garbageBytes += recordLength(old);
+                pos += HEADER + len;
+            }
+        }
+
+        synchronized Customer get(int cid) {
+            Customer c = cache.get(cid);
+            if (c != null) return c;
+            Long loc = index.get(cid);
+            if (loc == null) return null;
+            try {
+                c = read(loc);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read customer " + cid, e);
+            }
+            cache.put(cid, c);
+            return c;
+        }
+
+        // Reads records straight from the segments so a full scan doesn't flush the cache
+        synchronized void forEach(Consumer<Customer> action) {
+            for (Map.Entry<Integer, Long> e : index.entrySet()) {
+                Customer c = cache.get(e.getKey());
+                try {
+                    action.accept(c != null ? c : read(e.getValue()));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Cannot read customer " + e.getKey(), ex);
+                }
+            }
+        }
+
+        synchronized boolean contains(int cid) {
+            return index.containsKey(cid);
+        }
+
+        synchronized boolean create(int cid) {
+            if (index.containsKey(cid)) return false;
+            put(new Customer(cid));
+            return true;
+        }
+
+        synchronized void put(Customer c) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(PUT);
+                c.writeTo(out);
+                long loc = append(bytes.toByteArray());
+                Long old = index.put(c.getID(), loc);
+                if (old != null) discard(old);
+                cache.put(c.getID(), c);
+                maybeCompact();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write customer " + c.getID(), e);
+            }
+        }
+
+        synchronized boolean remove(int cid) {
+            Long old = index.get(cid);
+            if (old == null) return false;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(DEL);
+                out.writeInt(cid);
+                byte[] rec = bytes.toByteArray();
+                append(rec);
+                discard(old);
+                garbageBytes += HEADER + rec.length;
+                index.remove(cid);
+                cache.remove(cid);
+                maybeCompact();
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot delete customer " + cid, e);
+            }
+        }
+
+        private long append(byte[] payload) throws IOException {
+            int len = HEADER + payload.length;
+            if (activeSize > 0 && activeSize + len > segmentBytes) roll();
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            buf.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+            long offset = activeSize;
+            while (buf.hasRemaining()) active.write(buf, activeSize + buf.position());
+            if (fsync) active.force(false);
+            activeSize += len;
+            totalBytes += len;
+            return ((long) activeId << 32) | offset;
+        }
+
+        private void roll() throws IOException {
+            roll(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        }
+
+        private void roll(int id) throws IOException {
+            if (active != null) active.force(false);
+            activeId = id;
+            active = FileChannel.open(segmentFile(activeId).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(activeId, active);
+            activeSize = 0;
+        }
+
+        private Customer read(long loc) throws IOException {
+            ByteBuffer rec = readRecord(segments.get((int) (loc >>> 32)), loc & 0xffffffffL);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(rec.array(), HEADER + 1, rec.limit() - HEADER - 1));
+            return Customer.readFrom(in);
+        }
+
+        // The whole record, header included, ready to be written elsewhere
+        private static ByteBuffer readRecord(FileChannel ch, long pos) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            ch.read(header, pos);
+            ByteBuffer rec = ByteBuffer.allocate(HEADER + header.getInt(0));
+            while (rec.hasRemaining()) {
+                if (ch.read(rec, pos + rec.position()) < 0) throw new EOFException("Truncated record at " + pos);
+            }
+            rec.flip();
+            return rec;
+        }
+
+        // Accounts for the record at loc being superseded
+        private void discard(long loc) throws IOException {
+            long len = recordLength(loc);
+            garbageBytes += len;
+            if (compacting && (int) (loc >>> 32) <= sealedId) sealedGarbage += len;
+        }
+
+        private long recordLength(long loc) throws IOException {
+            ByteBuffer len = ByteBuffer.allocate(4);
+            segments.get((int) (loc >>> 32)).read(len, loc & 0xffffffffL);
+            len.flip();
+            return HEADER + len.getInt();
+        }
+
+        // Seals the current segments and hands them to the compactor. Only the index is copied
+        // here; the records are copied off the shard lock, so puts don't stall behind it
+        private void maybeCompact() throws IOException {
+            if (compacting || closed || totalBytes < Math.max(segmentBytes / 4, retryBytes) || garbageBytes * 2 < totalBytes) return;
+
+            TreeMap<Integer, FileChannel> sealed = new TreeMap<>(segments);
+            Map<Integer, Long> live = new HashMap<>(index);
+            // leave IDs for the compacted segments between the sealed ones and the new active
+            // one so recover() replays them in that order; a segment is at least half full
+            // unless it holds a single record
+            int firstId = sealed.lastKey() + 1;
+            int reserved = (int) Math.max(1, Math.min(live.size(), 2 * ((totalBytes - garbageBytes) / segmentBytes) + 2));
+            roll(firstId + reserved);
+
+            compacting = true;
+            sealedId = sealed.lastKey();
+            sealedBytes = totalBytes;
+            sealedGarbage = garbageBytes;
+            compactor.execute(() -> compact(sealed, live, firstId, firstId + reserved));
+        }
+
+        // Runs on the compactor thread without the shard lock: the sealed segments are no
+        // longer written to, and the new ones aren't visible until finishCompaction
+        private void compact(TreeMap<Integer, FileChannel> sealed, Map<Integer, Long> live, int firstId, int endId) {
+            TreeMap<Integer, FileChannel> fresh = new TreeMap<>();
+            Map<Integer, Long> moved = new HashMap<>(live.size() * 2);
+            long written = 0;
+            try {
+                FileChannel ch = null;
+                long size = 0;
+                for (Map.Entry<Integer, Long> e : live.entrySet()) {
+                    long loc = e.getValue();
+                    ByteBuffer rec = readRecord(sealed.get((int) (loc >>> 32)), loc & 0xffffffffL);
+                    int len = rec.remaining();
+                    if (ch == null || (size > 0 && size + len > segmentBytes)) {
+                        int id = fresh.isEmpty() ? firstId : fresh.lastKey() + 1;
+                        if (id >= endId) throw new IOException("Compacted records outgrew the " + (endId - firstId) + " reserved segments");
+                        if (ch != null) ch.force(false);
+                        ch = FileChannel.open(segmentFile(id).toPath(),
+                                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        fresh.put(id, ch);
+                        size = 0;
+                    }
+                    while (rec.hasRemaining()) ch.write(rec, size + rec.position());
+                    moved.put(e.getKey(), ((long) fresh.lastKey() << 32) | size);
+                    size += len;
+                    written += len;
+                }
+                if (ch != null) ch.force(false);
+            } catch (IOException | RuntimeException e) {
+                Trace.warn("MW::DurableCustomerStore compaction of " + dir.getName() + " failed: " + e);
+                abortCompaction(fresh);
+                return;
+            }
+            finishCompaction(sealed, live, moved, fresh, written);
+        }
+
+        private synchronized void finishCompaction(TreeMap<Integer, FileChannel> sealed, Map<Integer, Long> live,
+                                                   Map<Integer, Long> moved, TreeMap<Integer, FileChannel> fresh, long written) {
+            compacting = false;
+            if (closed) {
+                // the copies are durable and replay before the newer segments, so leave them
+                for (FileChannel ch : fresh.values()) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+                return;
+            }
+            long before = totalBytes;
+            segments.putAll(fresh);
+            try {
+                // customers changed or removed since the seal already point past the copies
+                long garbage = 0;
+                for (Map.Entry<Integer, Long> e : moved.entrySet()) {
+                    Long now = index.get(e.getKey());
+                    if (now != null && now.equals(live.get(e.getKey()))) {
+                        index.put(e.getKey(), e.getValue());
+                    } else {
+                        garbage += recordLength(e.getValue());
+                    }
+                }
+                totalBytes += written - sealedBytes;
+                garbageBytes += garbage - sealedGarbage;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot finish compacting " + dir, e);
+            }
+
+            // the new segments are durable; older ones can go (oldest first, see recover())
+            for (int id : sealed.keySet()) {
+                FileChannel ch = segments.remove(id);
+                try { ch.close(); } catch (IOException ignored) {}
+                if (!segmentFile(id).delete()) Trace.warn("MW::DurableCustomerStore cannot delete " + segmentFile(id));
+            }
+            Trace.info("MW::DurableCustomerStore compacted " + dir.getName() + ": " + before + " -> " + totalBytes + " bytes");
+        }
+
+        private synchronized void abortCompaction(TreeMap<Integer, FileChannel> fresh) {
+            compacting = false;
+            retryBytes = totalBytes + segmentBytes;
+            for (Map.Entry<Integer, FileChannel> e : fresh.entrySet()) {
+                try { e.getValue().close(); } catch (IOException ignored) {}
+                if (!segmentFile(e.getKey()).delete()) Trace.warn("MW::DurableCustomerStore cannot delete " + segmentFile(e.getKey()));
+            }
+        }
+
+        private static int crc(byte[] b) {
+            CRC32 crc = new CRC32();
+            crc.update(b, 0, b.length);
+            return (int) crc.getValue();
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (FileChannel ch : segments.values()) {
+                try { ch.force(false); ch.close(); } catch (IOException ignored) {}
+            }
+            segments.clear();
+        }
+    }
+}
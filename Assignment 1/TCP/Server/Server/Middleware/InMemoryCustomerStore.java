@@ -0,0 +1,56 @@
+package Server.Middleware;
+
+import Server.Common.Customer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Default store: customers live only in this Middleware's heap and are lost on restart
+public class InMemoryCustomerStore implements CustomerStore {
+
+    private final ConcurrentHashMap<Integer, Customer> customers = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[256];
+
+    public InMemoryCustomerStore() {
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    @Override
+    public Customer get(int customerID) {
+        return customers.get(customerID);
+    }
+
+    @Override
+    public boolean create(int customerID) {
+        return customers.putIfAbsent(customerID, new Customer(customerID)) == null;
+    }
+
+    @Override
+    public void update(Customer customer) {
+        // the instance is the stored one, nothing to write back
+    }
+
+    @Override
+    public boolean remove(int customerID) {
+        return customers.remove(customerID) != null;
+    }
+
+    @Override
+    public boolean contains(int customerID) {
+        return customers.containsKey(customerID);
+    }
+
+    @Override
+    public Object lockFor(int customerID) {
+        return locks[Math.floorMod(customerID, locks.length)];
+    }
+
+    @Override
+    public void forEach(Consumer<Customer> action) {
+        customers.values().forEach(action);
+    }
+
+    @Override
+    public void close() {
+    }
+}
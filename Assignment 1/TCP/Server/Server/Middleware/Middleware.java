@@ -2,42 +2,118 @@ package Server.Middleware;
 
 import Server.Common.*;
 
-import java.io.Console;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 public class Middleware extends ResourceManager {
 
-    protected final TCPResourceManagerClient flightRM;
-    protected final TCPResourceManagerClient carRM;
-    protected final TCPResourceManagerClient roomRM;
+    protected final ResourceManagerGroup flightRM;
+    protected final ResourceManagerGroup carRM;
+    protected final ResourceManagerGroup roomRM;
 
-    private final ConcurrentHashMap<Integer, Customer> customers = new ConcurrentHashMap<>();
+    // in memory by default; durable and sharded on disk when -Dmw.customers.dir is set
+    private final CustomerStore customers;
 
-    private final Random rng = new Random();
+    // the share of customer IDs this instance serves when several Middlewares run side by side
+    private final CustomerPartition partition = CustomerPartition.fromSystemProperties();
+
+    // IDs in this instance's partition, leased in blocks; the high-water mark is kept next to the customers
+    private final CustomerIdAllocator ids;
+
+    // item key -> customers of this instance holding it, kept in step with their bills
+    private final ReservationIndex holdings = new ReservationIndex();
+
+    // holders released per removeReservations call when an item is cancelled
+    private static final int CANCEL_BATCH = Integer.getInteger("mw.cancel.batch", 256);
+
+    // runs calls to different RMs side by side (releases, bundle searches)
+    private final ExecutorService rmPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "MW-fanout");
+        t.setDaemon(true);
+        return t;
+    });
 
     public Middleware(String name,
                       String flightHost, int flightPort,
                       String carHost, int carPort,
                       String roomHost, int roomPort) throws IOException {
+        this(name,
+                Collections.singletonList(ResourceManagerGroup.endpoint(flightHost, flightPort)),
+                Collections.singletonList(ResourceManagerGroup.endpoint(carHost, carPort)),
+                Collections.singletonList(ResourceManagerGroup.endpoint(roomHost, roomPort)));
+    }
+
+    // Each list holds "host:port" endpoints (or "primary|replica|..." replica sets); items of
+    // that type are spread over them by consistent hashing
+    public Middleware(String name,
+                      List<String> flightRMs,
+                      List<String> carRMs,
+                      List<String> roomRMs) throws IOException {
         super(name);
-        this.flightRM = new TCPResourceManagerClient(flightHost, flightPort, "Flights");
-        this.carRM    = new TCPResourceManagerClient(carHost,    carPort,    "Cars");
-        this.roomRM   = new TCPResourceManagerClient(roomHost,   roomPort,   "Rooms");
+        this.flightRM = buildGroup("Flights", flightRMs);
+        this.carRM    = buildGroup("Cars",    carRMs);
+        this.roomRM   = buildGroup("Rooms",   roomRMs);
+        this.customers = System.getProperty("mw.customers.dir") != null
+                ? DurableCustomerStore.fromSystemProperties()
+                : new InMemoryCustomerStore();
+        String dir = System.getProperty("mw.customers.dir");
+        this.ids = new CustomerIdAllocator(partition.index, partition.count,
+                Integer.getInteger("mw.customers.idBlock", CustomerIdAllocator.DEFAULT_BLOCK),
+                dir == null ? null : new File(dir, "customer-ids-" + partition.index + ".hwm"));
+        customers.forEach(c -> {
+            for (RMItem item : c.getReservations().values()) {
+                ReservedItem r = (ReservedItem) item;
+                holdings.add(r.getKey(), c.getID(), r.getCount());
+            }
+        });
+    }
+
+    private static ResourceManagerGroup buildGroup(String tag, List<String> endpoints) throws IOException {
+        ResourceManagerGroup group = new ResourceManagerGroup(tag);
+        for (String ep : endpoints) {
+            group.add(ep);
+        }
+        return group;
     }
 
     public void close() {
         try { flightRM.close(); } catch (Exception ignored) {}
         try { carRM.close(); }    catch (Exception ignored) {}
         try { roomRM.close(); }   catch (Exception ignored) {}
+        try { customers.close(); } catch (Exception ignored) {}
+        rmPool.shutdown();
+    }
+
+    // Adds an RM for "Flights", "Cars" or "Rooms" at runtime and moves over the items it now owns
+    public int addResourceManager(String type, String host, int port) throws IOException {
+        return addResourceManager(type, ResourceManagerGroup.endpoint(host, port));
+    }
+
+    // spec is "host:port" or "primary:port|replica:port|..." for a replicated RM
+    public int addResourceManager(String type, String spec) throws IOException {
+        Trace.info("MW::addResourceManager(" + type + ", " + spec + ")");
+        switch (type.toLowerCase()) {
+            case "flights": return flightRM.addAndRebalance(spec);
+            case "cars":    return carRM.addAndRebalance(spec);
+            case "rooms":   return roomRM.addAndRebalance(spec);
+            default:
+                throw new IllegalArgumentException("Unknown RM type: " + type);
+        }
     }
 
     @Override
     public boolean addFlight(int flightNum, int flightSeats, int flightPrice) {
         Trace.info("MW::addFlight(" + flightNum + "," + flightSeats + ",$" + flightPrice + ")");
         try {
-            return flightRM.sendBool("addFlight", flightNum, flightSeats, flightPrice);
+            return flightRM.sendBool(Flight.getKey(flightNum), "addFlight", flightNum, flightSeats, flightPrice);
         } catch (IOException e) {
             Trace.warn("MW::addFlight failed: " + e.getMessage());
             return false;
@@ -48,7 +124,7 @@ public class Middleware extends ResourceManager {
     public boolean deleteFlight(int flightNum) {
         Trace.info("MW::deleteFlight(" + flightNum + ")");
         try {
-            return flightRM.sendBool("deleteFlight", flightNum);
+            return flightRM.sendBool(Flight.getKey(flightNum), "deleteFlight", flightNum);
         } catch (IOException e) {
             Trace.warn("MW::deleteFlight failed: " + e.getMessage());
             return false;
@@ -59,7 +135,7 @@ public class Middleware extends ResourceManager {
     public int queryFlight(int flightNum) {
         Trace.info("MW::queryFlight(" + flightNum + ")");
         try {
-            return flightRM.sendInt("queryFlight", flightNum);
+            return flightRM.readInt(Flight.getKey(flightNum), "queryFlight", flightNum);
         } catch (IOException e) {
             Trace.warn("MW::queryFlight failed: " + e.getMessage());
             return -1;
@@ -70,7 +146,7 @@ public class Middleware extends ResourceManager {
     public int queryFlightPrice(int flightNum) {
         Trace.info("MW::queryFlightPrice(" + flightNum + ")");
         try {
-            return flightRM.sendInt("queryFlightPrice", flightNum);
+            return flightRM.readInt(Flight.getKey(flightNum), "queryFlightPrice", flightNum);
         } catch (IOException e) {
             Trace.warn("MW::queryFlightPrice failed: " + e.getMessage());
             return -1;
@@ -81,7 +157,7 @@ public class Middleware extends ResourceManager {
     public boolean addCars(String location, int numCars, int price) {
         Trace.info("MW::addCars(" + location + "," + numCars + ",$" + price + ")");
         try {
-            return carRM.sendBool("addCars", location, numCars, price);
+            return carRM.sendBool(Car.getKey(location), "addCars", location, numCars, price);
         } catch (IOException e) {
             Trace.warn("MW::addCars failed: " + e.getMessage());
             return false;
@@ -92,7 +168,7 @@ public class Middleware extends ResourceManager {
     public boolean deleteCars(String location) {
         Trace.info("MW::deleteCars(" + location + ")");
         try {
-            return carRM.sendBool("deleteCars", location);
+            return carRM.sendBool(Car.getKey(location), "deleteCars", location);
         } catch (IOException e) {
             Trace.warn("MW::deleteCars failed: " + e.getMessage());
             return false;
@@ -103,7 +179,7 @@ public class Middleware extends ResourceManager {
     public int queryCars(String location) {
         Trace.info("MW::queryCars(" + location + ")");
         try {
-            return carRM.sendInt("queryCars", location);
+            return carRM.readInt(Car.getKey(location), "queryCars", location);
         } catch (IOException e) {
             Trace.warn("MW::queryCars failed: " + e.getMessage());
             return -1;
@@ -114,7 +190,7 @@ public class Middleware extends ResourceManager {
     public int queryCarsPrice(String location) {
         Trace.info("MW::queryCarsPrice(" + location + ")");
         try {
-            return carRM.sendInt("queryCarsPrice", location);
+            return carRM.readInt(Car.getKey(location), "queryCarsPrice", location);
         } catch (IOException e) {
             Trace.warn("MW::queryCarsPrice failed: " + e.getMessage());
             return -1;
@@ -125,7 +201,7 @@ public class Middleware extends ResourceManager {
     public boolean addRooms(String location, int numRooms, int price) {
         Trace.info("MW::addRooms(" + location + "," + numRooms + ",$" + price + ")");
         try {
-            return roomRM.sendBool("addRooms", location, numRooms, price);
+            return roomRM.sendBool(Room.getKey(location), "addRooms", location, numRooms, price);
         } catch (IOException e) {
             Trace.warn("MW::addRooms failed: " + e.getMessage());
             return false;
@@ -136,18 +212,117 @@ public class Middleware extends ResourceManager {
     public boolean deleteRooms(String location) {
         Trace.info("MW::deleteRooms(" + location + ")");
         try {
-            return roomRM.sendBool("deleteRooms", location);
+            return roomRM.sendBool(Room.getKey(location), "deleteRooms", location);
         } catch (IOException e) {
             Trace.warn("MW::deleteRooms failed: " + e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Cancels an item for every customer of this Middleware who holds it: the reservation
+     * is taken off their bills and released on the RM in batches, then the item is deleted.
+     * With several Middlewares each one refunds its own customers; the item is deleted by
+     * the call that releases the last reservation.
+     *
+     * Only the customers holding the item when the call starts are refunded. A reservation
+     * made while it runs is kept, and the item then stays (the delete is refused); a query
+     * shows whether it is gone.
+     *
+     * @return number of customers refunded
+     * @throws IOException if the RM could not release a batch; that batch is put back on
+     *         the customers' bills, and batches released before it stay refunded
+     */
+    public int cancelFlight(int flightNum) throws IOException {
+        return cancelItem(flightRM, Flight.getKey(flightNum), () -> deleteFlight(flightNum));
+    }
+
+    public int cancelCars(String location) throws IOException {
+        return cancelItem(carRM, Car.getKey(location), () -> deleteCars(location));
+    }
+
+    public int cancelRooms(String location) throws IOException {
+        return cancelItem(roomRM, Room.getKey(location), () -> deleteRooms(location));
+    }
+
+    private int cancelItem(ResourceManagerGroup group, String key, BooleanSupplier delete) throws IOException {
+        Map<Integer, Integer> holders = holdings.holders(key);
+        Trace.info("MW::cancel(" + key + ") " + holders.size() + " holders");
+
+        int refunded = 0;
+        Map<Integer, ReservedItem> batch = new LinkedHashMap<>();
+        for (int customerID : holders.keySet()) {
+            ReservedItem held;
+            LockWaitEvent lockWait = LockWaitEvent.start();
+            synchronized (customers.lockFor(customerID)) {
+                lockWait.acquired(customerID);
+                Customer c = customers.get(customerID);
+                if (c == null) continue;
+                held = c.getReservedItem(key);
+                if (held != null) {
+                    c.cancel(key);
+                    customers.update(c);
+                }
+                holdings.remove(key, customerID);
+            }
+            if (held == null) continue;
+            batch.put(customerID, held);
+            if (batch.size() >= CANCEL_BATCH) {
+                releaseBatch(group, key, batch);
+                refunded += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            releaseBatch(group, key, batch);
+            refunded += batch.size();
+        }
+
+        boolean deleted = delete.getAsBoolean();
+        Trace.info("MW::cancel(" + key + ") refunded " + refunded + " customers, " + (deleted ? "deleted" : "not deleted"));
+        return refunded;
+    }
+
+    // Releases a batch of holders' units with one removeReservations call. If the RM can't
+    // be reached the units go back on the bills, since the RM still counts them as reserved.
+    private void releaseBatch(ResourceManagerGroup group, String key, Map<Integer, ReservedItem> batch) throws IOException {
+        List<Object> args = new ArrayList<>(1 + 2 * batch.size());
+        args.add(key);
+        for (Map.Entry<Integer, ReservedItem> e : batch.entrySet()) {
+            args.add(e.getKey());
+            args.add(e.getValue().getCount());
+        }
+        try {
+            group.sendBool(key, "removeReservations", args.toArray());
+        } catch (IOException e) {
+            Trace.warn("MW::cancel(" + key + ") removeReservations failed, restoring " + batch.size() + " bills: " + e.getMessage());
+            for (Map.Entry<Integer, ReservedItem> held : batch.entrySet()) {
+                restore(held.getKey(), held.getValue());
+            }
+            throw e;
+        }
+    }
+
+    private void restore(int customerID, ReservedItem held) {
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c == null) {
+                Trace.warn("MW::cancel(" + held.getKey() + ") customer " + customerID + " was deleted, " + held.getCount() + " units stay reserved");
+                return;
+            }
+            c.restore(held.getKey(), held.getLocation(), held.getCount(), held.getPrice());
+            customers.update(c);
+            holdings.add(held.getKey(), customerID, held.getCount());
+        }
+    }
+
     @Override
     public int queryRooms(String location) {
         Trace.info("MW::queryRooms(" + location + ")");
         try {
-            return roomRM.sendInt("queryRooms", location);
+            return roomRM.readInt(Room.getKey(location), "queryRooms", location);
         } catch (IOException e) {
             Trace.warn("MW::queryRooms failed: " + e.getMessage());
             return -1;
@@ -158,7 +333,7 @@ public class Middleware extends ResourceManager {
     public int queryRoomsPrice(String location) {
         Trace.info("MW::queryRoomsPrice(" + location + ")");
         try {
-            return roomRM.sendInt("queryRoomsPrice", location);
+            return roomRM.readInt(Room.getKey(location), "queryRoomsPrice", location);
         } catch (IOException e) {
             Trace.warn("MW::queryRoomsPrice failed: " + e.getMessage());
             return -1;
@@ -167,21 +342,19 @@ public class Middleware extends ResourceManager {
 
     @Override
     public int newCustomer() {
-        int cid = Integer.parseInt(
-                String.valueOf(Calendar.getInstance().get(Calendar.MILLISECOND)) +
-                        String.valueOf(Math.round(Math.random() * 100 + 1))
-        );
-        while (customers.containsKey(cid)) {
-            cid = rng.nextInt(Integer.MAX_VALUE);
-        }
-        customers.put(cid, new Customer(cid));
+        // only a customer created earlier with an explicit ID can be in the way
+        int cid = ids.next();
+        while (!customers.create(cid)) {
+            cid = ids.next();
+        }
         Trace.info("MW::newCustomer() -> " + cid);
         return cid;
     }
 
     @Override
     public boolean newCustomer(int customerID) {
-        if (customers.putIfAbsent(customerID, new Customer(customerID)) == null) {
+        checkOwner(customerID);
+        if (customers.create(customerID)) {
             Trace.info("MW::newCustomer(" + customerID + ") created");
             return true;
         }
@@ -191,33 +364,25 @@ public class Middleware extends ResourceManager {
 
     @Override
     public boolean deleteCustomer(int customerID) {
+        checkOwner(customerID);
         Trace.info("MW::deleteCustomer(" + customerID + ") called");
-        Customer c = customers.get(customerID);
-        if (c == null) {
-            Trace.warn("MW::deleteCustomer(" + customerID + ") failed -- customer does not exist");
-            return false;
-        }
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c == null) {
+                Trace.warn("MW::deleteCustomer(" + customerID + ") failed -- customer does not exist");
+                return false;
+            }
 
-        synchronized (c) {
-            RMHashMap reservations = c.getReservations();
-            for (String reservedKey : reservations.keySet()) {
-                ReservedItem r = c.getReservedItem(reservedKey);
-                String key   = r.getKey();
-                int count    = r.getCount();
-
-                try {
-                    if (key.startsWith("flight-")) {
-                        flightRM.sendBool("removeReservation", customerID, key, count);
-                    } else if (key.startsWith("car-")) {
-                        carRM.sendBool("removeReservation", customerID, key, count);
-                    } else if (key.startsWith("room-")) {
-                        roomRM.sendBool("removeReservation", customerID, key, count);
-                    } else {
-                        Trace.warn("MW::deleteCustomer unknown key type: " + key);
-                    }
-                } catch (IOException e) {
-                    Trace.warn("MW::deleteCustomer removeReservation failed for " + key + ": " + e.getMessage());
-                }
+            Map<String, Integer> held = new LinkedHashMap<>();
+            for (RMItem item : c.getReservations().values()) {
+                ReservedItem r = (ReservedItem) item;
+                held.put(r.getKey(), r.getCount());
+                holdings.remove(r.getKey(), customerID);
+            }
+            if (!releaseAll(customerID, held)) {
+                Trace.warn("MW::deleteCustomer(" + customerID + ") some reservations could not be released");
             }
 
             customers.remove(customerID);
@@ -228,35 +393,387 @@ public class Middleware extends ResourceManager {
     }
 
 
+    @Override
+    public boolean cancelReservation(int customerID, String itemKey) {
+        Vector<String> keys = new Vector<>();
+        keys.add(itemKey);
+        return cancelReservations(customerID, keys);
+    }
+
+    @Override
+    public boolean cancelReservations(int customerID, Vector<String> itemKeys) {
+        checkOwner(customerID);
+        Trace.info("MW::cancelReservations(" + customerID + ", " + itemKeys + ")");
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c == null) {
+                Trace.warn("MW::cancelReservations(" + customerID + ") failed -- customer does not exist");
+                return false;
+            }
+            boolean all = true;
+            Map<String, Integer> released = new LinkedHashMap<>();
+            for (String itemKey : itemKeys) {
+                // item keys are lower case everywhere; normalize once for the bill, the index and the RM
+                String key = itemKey.toLowerCase();
+                int count = c.cancel(key);
+                if (count == 0) {
+                    Trace.warn("MW::cancelReservations(" + customerID + ") customer holds no " + key);
+                    all = false;
+                    continue;
+                }
+                released.put(key, count);
+                holdings.remove(key, customerID);
+            }
+            if (released.isEmpty()) {
+                return false;
+            }
+            customers.update(c);
+            return releaseAll(customerID, released) && all;
+        }
+    }
+
+    // Gives a customer's units back with one batched call per RM; the flight, car and room
+    // RMs are called in parallel
+    private boolean releaseAll(int customerID, Map<String, Integer> items) {
+        Map<ResourceManagerGroup, Map<String, Integer>> byType = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> e : items.entrySet()) {
+            ResourceManagerGroup group = groupFor(e.getKey());
+            if (group == null) {
+                Trace.warn("MW::releaseAll unknown key type: " + e.getKey());
+                continue;
+            }
+            byType.computeIfAbsent(group, g -> new LinkedHashMap<>()).put(e.getKey(), e.getValue());
+        }
+        if (byType.size() == 1) {
+            Map.Entry<ResourceManagerGroup, Map<String, Integer>> only = byType.entrySet().iterator().next();
+            return only.getKey().releaseReservations(customerID, only.getValue());
+        }
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+        for (Map.Entry<ResourceManagerGroup, Map<String, Integer>> e : byType.entrySet()) {
+            calls.add(CompletableFuture.supplyAsync(TraceContext.wrap(() -> e.getKey().releaseReservations(customerID, e.getValue())), rmPool));
+        }
+        boolean ok = true;
+        for (CompletableFuture<Boolean> call : calls) {
+            ok &= call.join();
+        }
+        return ok;
+    }
+
+    private ResourceManagerGroup groupFor(String key) {
+        if (key.startsWith("flight-")) return flightRM;
+        if (key.startsWith("car-"))    return carRM;
+        if (key.startsWith("room-"))   return roomRM;
+        return null;
+    }
+
+    /**
+     * Items of a type ("Flights", "Cars" or "Rooms") with at least minAvailable units at a
+     * price of at most maxPrice, cheapest first, gathered from every RM of that type.
+     *
+     * @return (location, available, price) triples
+     */
+    @Override
+    public Vector<String> queryRange(String type, int minAvailable, int maxPrice) {
+        Trace.info("MW::queryRange(" + type + ", >=" + minAvailable + ", <=$" + maxPrice + ")");
+        return mergeByPrice(type, Integer.MAX_VALUE, "queryRange", itemType(type), minAvailable, maxPrice);
+    }
+
+    /** The k cheapest items of a type with at least minAvailable units, as (location, available, price) triples. */
+    @Override
+    public Vector<String> queryCheapest(String type, int k, int minAvailable) {
+        Trace.info("MW::queryCheapest(" + type + ", " + k + ", >=" + minAvailable + ")");
+        return mergeByPrice(type, k, "queryCheapest", itemType(type), k, minAvailable);
+    }
+
+    /** Locations starting with prefix (any case) that have cars or rooms, in name order, at most limit of them. */
+    @Override
+    public Vector<String> queryLocations(String prefix, int limit) {
+        Trace.info("MW::queryLocations(" + prefix + ", " + limit + ")");
+        TreeMap<String, String> merged = new TreeMap<>();
+        for (ResourceManagerGroup group : Arrays.asList(carRM, roomRM)) {
+            try {
+                for (List<String> part : group.sendAllList("queryLocations", limit, prefix)) {
+                    for (String location : part) {
+                        merged.putIfAbsent(location.toLowerCase(), location);
+                    }
+                }
+            } catch (IOException e) {
+                Trace.warn("MW::queryLocations(" + prefix + ") failed: " + e.getMessage());
+            }
+        }
+        Vector<String> out = new Vector<>();
+        for (String location : merged.values()) {
+            if (out.size() == limit) break;
+            out.add(location);
+        }
+        return out;
+    }
+
+    /** Every RM's hot keys, each line prefixed with its RM group ("Flights: hot flight-12 ~4210 31.0%"). */
+    @Override
+    public Vector<String> hotKeys(boolean reset) {
+        Vector<String> lines = new Vector<>();
+        for (ResourceManagerGroup group : Arrays.asList(flightRM, carRM, roomRM)) {
+            try {
+                for (List<String> part : group.sendAllList("hotKeys", reset)) {
+                    for (String line : part) {
+                        lines.add(group.getTag() + ": " + line);
+                    }
+                }
+            } catch (IOException e) {
+                lines.add(group.getTag() + ": unavailable (" + e.getMessage() + ")");
+            }
+        }
+        return lines;
+    }
+
+    // Each RM answers from its own indexes in price order; the partial answers are merged and cut to limit
+    private Vector<String> mergeByPrice(String type, int limit, String method, Object... args) {
+        List<String[]> rows = new ArrayList<>();
+        try {
+            for (List<String> part : groupForType(type).sendAllList(method, args)) {
+                for (int i = 0; i + 2 < part.size(); i += 3) {
+                    rows.add(new String[] {part.get(i), part.get(i + 1), part.get(i + 2)});
+                }
+            }
+        } catch (IOException e) {
+            Trace.warn("MW::" + method + "(" + type + ") failed: " + e.getMessage());
+        }
+        rows.sort(Comparator.comparingInt((String[] r) -> Integer.parseInt(r[2])).thenComparing(r -> r[0]));
+        Vector<String> out = new Vector<>();
+        for (int i = 0; i < rows.size() && i < limit; i++) {
+            Collections.addAll(out, rows.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Cheapest currently available itinerary within a budget. Each leg lists alternative
+     * flight numbers separated by '|' ("12|15|20"); one flight is picked per leg, plus a
+     * car and/or a room at the location when asked for.
+     *
+     * Availability and prices come from one queryItems call per owning RM, all in flight at
+     * once. Answers are used as they arrive: the search stops early, without waiting for the
+     * slower RMs, once a needed car or room is sold out, every alternative of some leg is
+     * sold out, or the prices already known put the total over the budget.
+     *
+     * @return [total, key, price, key, price, ...] for the chosen items, or empty if no
+     *         itinerary fits the budget
+     */
+    public Vector<String> searchBundle(Vector<String> legs, String location, boolean car, boolean room, int budget) {
+        Trace.info("MW::searchBundle(" + legs + ", " + location + ", car=" + car + ", room=" + room + ", <=$" + budget + ")");
+        List<List<String>> legKeys = new ArrayList<>();
+        Set<String> flightKeys = new LinkedHashSet<>();
+        for (String leg : legs) {
+            List<String> alternatives = new ArrayList<>();
+            for (String flight : leg.split("\\|")) {
+                if (flight.trim().isEmpty()) continue;
+                String key = Flight.getKey(Integer.parseInt(flight.trim()));
+                alternatives.add(key);
+                flightKeys.add(key);
+            }
+            if (alternatives.isEmpty()) {
+                throw new IllegalArgumentException("Empty leg in bundle search: " + leg);
+            }
+            legKeys.add(alternatives);
+        }
+        String carKey = car ? Car.getKey(location) : null;
+        String roomKey = room ? Room.getKey(location) : null;
+
+        List<Supplier<Map<String, int[]>>> tasks = new ArrayList<>(flightRM.queryItemsByOwner(flightKeys));
+        if (car) tasks.addAll(carRM.queryItemsByOwner(Collections.singletonList(carKey)));
+        if (room) tasks.addAll(roomRM.queryItemsByOwner(Collections.singletonList(roomKey)));
+
+        BlockingQueue<Map<String, int[]>> arrived = new LinkedBlockingQueue<>();
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (Supplier<Map<String, int[]>> task : tasks) {
+            calls.add(CompletableFuture.supplyAsync(TraceContext.wrap(task), rmPool)
+                    .handle((r, ex) -> r == null ? Collections.<String, int[]>emptyMap() : r)
+                    .thenAccept(arrived::add));
+        }
+
+        // key -> {available, price}; a key an RM failed to answer for stays unknown and counts as unavailable
+        Map<String, int[]> known = new HashMap<>();
+        try {
+            for (int pending = tasks.size(); pending > 0; pending--) {
+                known.putAll(arrived.take());
+                if (pending > 1 && hopeless(legKeys, carKey, roomKey, known, budget)) {
+                    Trace.info("MW::searchBundle pruned with " + (pending - 1) + " RM answers outstanding");
+                    calls.forEach(c -> c.cancel(false));
+                    return new Vector<>();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Vector<>();
+        }
+
+        Vector<String> picked = new Vector<>();
+        int extras = 0;
+        for (String key : Arrays.asList(carKey, roomKey)) {
+            if (key == null) continue;
+            int[] item = known.get(key);
+            if (item == null || item[0] <= 0) return new Vector<>();
+            extras += item[1];
+        }
+        String[] flights = cheapestFlights(legKeys, known, budget - extras);
+        if (flights == null) return new Vector<>();
+        int total = extras;
+        for (String key : flights) {
+            picked.add(key);
+            picked.add(Integer.toString(known.get(key)[1]));
+            total += known.get(key)[1];
+        }
+        for (String key : Arrays.asList(carKey, roomKey)) {
+            if (key == null) continue;
+            picked.add(key);
+            picked.add(Integer.toString(known.get(key)[1]));
+        }
+        picked.add(0, Integer.toString(total));
+        return picked;
+    }
+
+    // Cheapest choice of one flight per leg costing at most budget, never picking a flight
+    // more often than it has seats left (a flight may be listed in several legs); null if none.
+    // Legs rarely share flights, so the search normally takes the cheapest of each leg and
+    // the bound cuts off everything else.
+    private static String[] cheapestFlights(List<List<String>> legKeys, Map<String, int[]> known, int budget) {
+        int n = legKeys.size();
+        List<List<String>> options = new ArrayList<>();
+        long[] minFrom = new long[n + 1];   // cheapest possible cost of legs i.. ignoring seat limits
+        for (List<String> alternatives : legKeys) {
+            List<String> available = new ArrayList<>();
+            for (String key : alternatives) {
+                int[] item = known.get(key);
+                if (item != null && item[0] > 0 && !available.contains(key)) available.add(key);
+            }
+            if (available.isEmpty()) return null;
+            available.sort(Comparator.comparingInt(key -> known.get(key)[1]));
+            options.add(available);
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            minFrom[i] = minFrom[i + 1] + known.get(options.get(i).get(0))[1];
+        }
+        String[] best = new String[n];
+        long[] bestTotal = {(long) budget + 1};
+        pickFlights(options, known, minFrom, 0, 0, new String[n], new HashMap<>(), best, bestTotal);
+        return bestTotal[0] <= budget ? best : null;
+    }
+
+    private static void pickFlights(List<List<String>> options, Map<String, int[]> known, long[] minFrom, int leg, long cost,
+                                    String[] chosen, Map<String, Integer> used, String[] best, long[] bestTotal) {
+        if (cost + minFrom[leg] >= bestTotal[0]) return;
+        if (leg == chosen.length) {
+            System.arraycopy(chosen, 0, best, 0, chosen.length);
+            bestTotal[0] = cost;
+            return;
+        }
+        for (String key : options.get(leg)) {
+            int[] item = known.get(key);
+            int taken = used.getOrDefault(key, 0);
+            if (taken >= item[0]) continue;
+            used.put(key, taken + 1);
+            chosen[leg] = key;
+            pickFlights(options, known, minFrom, leg + 1, cost + item[1], chosen, used, best, bestTotal);
+            used.put(key, taken);
+        }
+    }
+
+    // True once the answers so far already rule out every itinerary within the budget
+    private static boolean hopeless(List<List<String>> legKeys, String carKey, String roomKey,
+                                    Map<String, int[]> known, int budget) {
+        long lowerBound = 0;
+        for (String key : Arrays.asList(carKey, roomKey)) {
+            if (key == null || !known.containsKey(key)) continue;
+            if (known.get(key)[0] <= 0) return true;
+            lowerBound += known.get(key)[1];
+        }
+        for (List<String> alternatives : legKeys) {
+            if (!known.keySet().containsAll(alternatives)) continue;
+            String best = cheapestAvailable(alternatives, known);
+            if (best == null) return true;
+            lowerBound += known.get(best)[1];
+        }
+        return lowerBound > budget;
+    }
+
+    private static String cheapestAvailable(List<String> keys, Map<String, int[]> known) {
+        String best = null;
+        for (String key : keys) {
+            int[] item = known.get(key);
+            if (item != null && item[0] > 0 && (best == null || item[1] < known.get(best)[1])) {
+                best = key;
+            }
+        }
+        return best;
+    }
+
+    private ResourceManagerGroup groupForType(String type) {
+        switch (itemType(type)) {
+            case "flight": return flightRM;
+            case "car":    return carRM;
+            case "room":   return roomRM;
+            default:
+                throw new IllegalArgumentException("Unknown item type: " + type);
+        }
+    }
+
+    // "Flights" / "flight" -> "flight", the key prefix the RMs index by
+    private static String itemType(String type) {
+        String t = type.toLowerCase();
+        return t.endsWith("s") ? t.substring(0, t.length() - 1) : t;
+    }
+
     @Override
     public String queryCustomerInfo(int customerID) {
+        checkOwner(customerID);
         Trace.info("MW::queryCustomerInfo(" + customerID + ")");
-        Customer c = customers.get(customerID);
-        if (c == null) {
-            return "";
-        }
-        synchronized (c) {
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c == null) {
+                return "";
+            }
             return c.getBill();
         }
     }
 
+    // Streams the bill into the caller's buffer under the customer's lock; appends nothing if the customer doesn't exist
+    public boolean appendBill(int customerID, Appendable out) throws IOException {
+        checkOwner(customerID);
+        Trace.info("MW::appendBill(" + customerID + ")");
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c == null) {
+                return false;
+            }
+            c.appendBill(out);
+            return true;
+        }
+    }
+
     @Override
     public boolean reserveFlight(int customerID, int flightNumber) {
+        checkOwner(customerID);
         Trace.info("MW::reserveFlight(" + customerID + ", " + flightNumber + ")");
-        Customer c = customers.get(customerID);
-        if (c == null) {
+        if (!customers.contains(customerID)) {
             Trace.warn("MW::reserveFlight failed -- customer doesn't exist");
             return false;
         }
 
         int price;
         try {
-            price = flightRM.sendInt("queryFlightPrice", flightNumber);
+            price = flightRM.sendInt(Flight.getKey(flightNumber), "queryFlightPrice", flightNumber);
             if (price <= 0) {
                 Trace.warn("MW::reserveFlight failed -- flight doesn't exist");
                 return false;
             }
-            boolean ok = flightRM.sendBool("reserveFlight", customerID, flightNumber);
+            boolean ok = flightRM.sendBool(Flight.getKey(flightNumber), "reserveFlight", customerID, flightNumber);
             if (!ok) {
                 Trace.warn("MW::reserveFlight failed -- RM refused reservation");
                 return false;
@@ -266,30 +783,26 @@ public class Middleware extends ResourceManager {
             return false;
         }
 
-        synchronized (c) {
-            String key = Flight.getKey(flightNumber);
-            c.reserve(key, String.valueOf(flightNumber), price);
-        }
-        return true;
+        return recordReservation(customerID, Flight.getKey(flightNumber), String.valueOf(flightNumber), price);
     }
 
     @Override
     public boolean reserveCar(int customerID, String location) {
+        checkOwner(customerID);
         Trace.info("MW::reserveCar(" + customerID + ", " + location + ")");
-        Customer c = customers.get(customerID);
-        if (c == null) {
+        if (!customers.contains(customerID)) {
             Trace.warn("MW::reserveCar failed -- customer doesn't exist");
             return false;
         }
 
         int price;
         try {
-            price = carRM.sendInt("queryCarsPrice", location);
+            price = carRM.sendInt(Car.getKey(location), "queryCarsPrice", location);
             if (price <= 0) {
                 Trace.warn("MW::reserveCar failed -- location doesn't exist");
                 return false;
             }
-            boolean ok = carRM.sendBool("reserveCar", customerID, location);
+            boolean ok = carRM.sendBool(Car.getKey(location), "reserveCar", customerID, location);
             if (!ok) {
                 Trace.warn("MW::reserveCar failed -- RM refused reservation");
                 return false;
@@ -299,30 +812,26 @@ public class Middleware extends ResourceManager {
             return false;
         }
 
-        synchronized (c) {
-            String key = Car.getKey(location);
-            c.reserve(key, location, price);
-        }
-        return true;
+        return recordReservation(customerID, Car.getKey(location), location, price);
     }
 
     @Override
     public boolean reserveRoom(int customerID, String location) {
+        checkOwner(customerID);
         Trace.info("MW::reserveRoom(" + customerID + ", " + location + ")");
-        Customer c = customers.get(customerID);
-        if (c == null) {
+        if (!customers.contains(customerID)) {
             Trace.warn("MW::reserveRoom failed -- customer doesn't exist");
             return false;
         }
 
         int price;
         try {
-            price = roomRM.sendInt("queryRoomsPrice", location);
+            price = roomRM.sendInt(Room.getKey(location), "queryRoomsPrice", location);
             if (price <= 0) {
                 Trace.warn("MW::reserveRoom failed -- location doesn't exist");
                 return false;
             }
-            boolean ok = roomRM.sendBool("reserveRoom", customerID, location);
+            boolean ok = roomRM.sendBool(Room.getKey(location), "reserveRoom", customerID, location);
             if (!ok) {
                 Trace.warn("MW::reserveRoom failed -- RM refused reservation");
                 return false;
@@ -332,18 +841,14 @@ public class Middleware extends ResourceManager {
             return false;
         }
 
-        synchronized (c) {
-            String key = Room.getKey(location);
-            c.reserve(key, location, price);
-        }
-        return true;
+        return recordReservation(customerID, Room.getKey(location), location, price);
     }
 
     @Override
     public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) {
+        checkOwner(customerID);
         Trace.info("MW::bundle(" + customerID + ", flights=" + flightNumbers + ", loc=" + location + ", car=" + car + ", room=" + room + ")");
-        Customer c = customers.get(customerID);
-        if (c == null) {
+        if (!customers.contains(customerID)) {
             Trace.warn("MW::bundle failed -- customer doesn't exist");
             return false;
         }
@@ -358,7 +863,7 @@ public class Middleware extends ResourceManager {
         try {
             for (String fnStr : flightNumbers) {
                 int fn = Integer.parseInt(fnStr);
-                int price = flightRM.sendInt("queryFlightPrice", fn);
+                int price = flightRM.sendInt(Flight.getKey(fn), "queryFlightPrice", fn);
                 Trace.info("MW::bundle checking flight " + fn + " price=" + price);
                 if (price <= 0) {
                     Trace.warn("MW::bundle failed -- flight " + fn + " unavailable");
@@ -368,7 +873,7 @@ public class Middleware extends ResourceManager {
             }
 
             if (car) {
-                carPrice = carRM.sendInt("queryCarsPrice", location);
+                carPrice = carRM.sendInt(Car.getKey(location), "queryCarsPrice", location);
                 Trace.info("MW::bundle checking cars at " + location + " price=" + carPrice);
                 if (carPrice <= 0) {
                     Trace.warn("MW::bundle failed -- car at " + location + " unavailable");
@@ -377,7 +882,7 @@ public class Middleware extends ResourceManager {
             }
 
             if (room) {
-                roomPrice = roomRM.sendInt("queryRoomsPrice", location);
+                roomPrice = roomRM.sendInt(Room.getKey(location), "queryRoomsPrice", location);
                 Trace.info("MW::bundle checking rooms at " + location + " price=" + roomPrice);
                 if (roomPrice <= 0) {
                     Trace.warn("MW::bundle failed -- room at " + location + " unavailable");
@@ -387,7 +892,7 @@ public class Middleware extends ResourceManager {
 
             for (Integer fn : flightPrices.keySet()) {
                 Trace.info("MW::bundle trying reserveFlight(" + fn + ")");
-                if (!flightRM.sendBool("reserveFlight", customerID, fn)) {
+                if (!flightRM.sendBool(Flight.getKey(fn), "reserveFlight", customerID, fn)) {
                     Trace.warn("MW::bundle failed -- reserveFlight failed for " + fn);
                     rollbackFlights(reservedFlights, customerID);
                     return false;
@@ -398,7 +903,7 @@ public class Middleware extends ResourceManager {
 
             if (car) {
                 Trace.info("MW::bundle trying reserveCar(" + location + ")");
-                if (!carRM.sendBool("reserveCar", customerID, location)) {
+                if (!carRM.sendBool(Car.getKey(location), "reserveCar", customerID, location)) {
                     Trace.warn("MW::bundle failed -- reserveCar failed");
                     rollbackFlights(reservedFlights, customerID);
                     return false;
@@ -409,7 +914,7 @@ public class Middleware extends ResourceManager {
 
             if (room) {
                 Trace.info("MW::bundle trying reserveRoom(" + location + ")");
-                if (!roomRM.sendBool("reserveRoom", customerID, location)) {
+                if (!roomRM.sendBool(Room.getKey(location), "reserveRoom", customerID, location)) {
                     Trace.warn("MW::bundle failed -- reserveRoom failed");
                     if (reservedCar) releaseCar(location, customerID);
                     rollbackFlights(reservedFlights, customerID);
@@ -431,30 +936,79 @@ public class Middleware extends ResourceManager {
         }
 
         Trace.info("MW::bundle all reservations succeeded, updating customer " + customerID);
-        synchronized (c) {
-            for (Integer fn : flightPrices.keySet()) {
-                Trace.info("MW::bundle recording flight " + fn + " into customer " + customerID);
-                c.reserve(Flight.getKey(fn), String.valueOf(fn), flightPrices.get(fn));
-            }
-            if (reservedCar) {
-                Trace.info("MW::bundle recording car at " + location + " into customer " + customerID);
-                c.reserve(Car.getKey(location), location, carPrice);
-            }
-            if (reservedRoom) {
-                Trace.info("MW::bundle recording room at " + location + " into customer " + customerID);
-                c.reserve(Room.getKey(location), location, roomPrice);
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        boolean recorded = false;
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c != null) {
+                recorded = true;
+                for (Integer fn : flightPrices.keySet()) {
+                    Trace.info("MW::bundle recording flight " + fn + " into customer " + customerID);
+                    c.reserve(Flight.getKey(fn), String.valueOf(fn), flightPrices.get(fn));
+                    holdings.add(Flight.getKey(fn), customerID, 1);
+                }
+                if (reservedCar) {
+                    Trace.info("MW::bundle recording car at " + location + " into customer " + customerID);
+                    c.reserve(Car.getKey(location), location, carPrice);
+                    holdings.add(Car.getKey(location), customerID, 1);
+                }
+                if (reservedRoom) {
+                    Trace.info("MW::bundle recording room at " + location + " into customer " + customerID);
+                    c.reserve(Room.getKey(location), location, roomPrice);
+                    holdings.add(Room.getKey(location), customerID, 1);
+                }
+                customers.update(c);
             }
         }
+        if (!recorded) {
+            Trace.warn("MW::bundle(" + customerID + ") customer was deleted while reserving, releasing the bundle");
+            if (reservedRoom) releaseRoom(location, customerID);
+            if (reservedCar)  releaseCar(location, customerID);
+            rollbackFlights(reservedFlights, customerID);
+            return false;
+        }
         Trace.info("MW::bundle(" + customerID + ") succeeded");
         return true;
     }
 
 
+    // A misrouted customer request fails loudly rather than creating a second copy of the customer
+    private void checkOwner(int customerID) {
+        if (!partition.owns(customerID)) {
+            throw new IllegalStateException("Customer " + customerID + " belongs to middleware "
+                    + CustomerPartition.ownerOf(customerID, partition.count) + ", this is " + partition);
+        }
+    }
+
+    // Adds an item the RM has already reserved to the customer's bill; if the customer
+    // was deleted meanwhile the unit goes back to the RM instead
+    private boolean recordReservation(int customerID, String key, String location, int price) {
+        LockWaitEvent lockWait = LockWaitEvent.start();
+        synchronized (customers.lockFor(customerID)) {
+            lockWait.acquired(customerID);
+            Customer c = customers.get(customerID);
+            if (c != null) {
+                c.reserve(key, location, price);
+                customers.update(c);
+                holdings.add(key, customerID, 1);
+                return true;
+            }
+        }
+        Trace.warn("MW::recordReservation(" + customerID + ", " + key + ") customer was deleted while reserving, releasing the unit");
+        try {
+            groupFor(key).sendBool(key, "removeReservation", customerID, key, 1);
+        } catch (IOException e) {
+            Trace.warn("MW::recordReservation(" + customerID + ", " + key + ") release failed: " + e.getMessage());
+        }
+        return false;
+    }
+
     private void rollbackFlights(List<Integer> reservedFlights, int customerID) {
         for (Integer fn : reservedFlights) {
             try {
                 String key = Flight.getKey(fn);
-                flightRM.sendBool("removeReservation", customerID, key, 1);
+                flightRM.sendBool(key, "removeReservation", customerID, key, 1);
             } catch (IOException ignored) {}
         }
     }
@@ -462,14 +1016,14 @@ public class Middleware extends ResourceManager {
     private void releaseCar(String location, int customerID) {
         try {
             String key = Car.getKey(location);
-            carRM.sendBool("removeReservation", customerID, key, 1);
+            carRM.sendBool(key, "removeReservation", customerID, key, 1);
         } catch (IOException ignored) {}
     }
 
     private void releaseRoom(String location, int customerID) {
         try {
             String key = Room.getKey(location);
-            roomRM.sendBool("removeReservation", customerID, key, 1);
+            roomRM.sendBool(key, "removeReservation", customerID, key, 1);
         } catch (IOException ignored) {}
     }
 
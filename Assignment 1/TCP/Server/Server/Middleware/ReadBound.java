@@ -0,0 +1,30 @@
+package Server.Middleware;
+
+/**
+ * How stale a follower read may be: at most {@code maxLagPositions} log entries
+ * and {@code maxLagMillis} behind the most advanced replica. Configured with
+ * -Dmw.read.maxLagPositions / -Dmw.read.maxLagMillis.
+ */
+public class ReadBound {
+
+    public static final ReadBound PRIMARY = new ReadBound(0, 0);
+
+    public final long maxLagPositions;
+    public final long maxLagMillis;
+
+    public ReadBound(long maxLagPositions, long maxLagMillis) {
+        this.maxLagPositions = maxLagPositions;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    public static ReadBound fromSystemProperties() {
+        return new ReadBound(
+                Long.getLong("mw.read.maxLagPositions", Long.MAX_VALUE),
+                Long.getLong("mw.read.maxLagMillis", 500));
+    }
+
+    @Override
+    public String toString() {
+        return "ReadBound{positions=" + maxLagPositions + ", ms=" + maxLagMillis + "}";
+    }
+}
@@ -0,0 +1,136 @@
+package Server.Middleware;
+
+import Server.Common.Trace;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The replicas of one RM partition. Writes go to the primary (the first
+ * endpoint); reads may go to any replica whose staleness is within a
+ * {@link ReadBound}, picking the one with the fewest requests in flight.
+ *
+ * Replica positions are learnt by polling "replicaStatus". The head of the log
+ * is the highest position any replica reported; the time lag of a replica is
+ * how long ago the head first moved past the replica's position, so it is only
+ * as precise as the poll interval.
+ */
+public class ReplicaSet {
+
+    static final class Replica {
+        final String endpoint;
+        final TCPResourceManagerClient client;
+        final AtomicInteger inflight = new AtomicInteger();
+        volatile long applied;
+        volatile long polledAt;
+
+        Replica(String endpoint, TCPResourceManagerClient client) {
+            this.endpoint = endpoint;
+            this.client = client;
+        }
+    }
+
+    private final String tag;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final ArrayDeque<long[]> headHistory = new ArrayDeque<>(); // {position, firstSeenMillis}
+    private volatile long head;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    // spec: "host:port" or "primary:port|replica:port|..."
+    public ReplicaSet(String tag, String spec) throws IOException {
+        this.tag = tag;
+        for (String ep : spec.split("\\|")) {
+            String[] hp = ep.trim().split(":", 2);
+            replicas.add(new Replica(ep.trim(), new TCPResourceManagerClient(hp[0], Integer.parseInt(hp[1]), tag)));
+        }
+    }
+
+    public TCPResourceManagerClient primary() {
+        return replicas.get(0).client;
+    }
+
+    public int size() {
+        return replicas.size();
+    }
+
+    @Override
+    public String toString() {
+        return replicas.get(0).endpoint;
+    }
+
+    public int readInt(ReadBound bound, String method, Object... args) throws IOException {
+        Replica r = pick(bound);
+        if (r == null) {
+            return primary().sendInt(method, args);
+        }
+        long minPosition = bound.maxLagPositions == Long.MAX_VALUE ? 0 : Math.max(0, head - bound.maxLagPositions);
+        r.inflight.incrementAndGet();
+        try {
+            return r.client.readInt(minPosition, method, args);
+        } catch (IOException e) {
+            // replica refused (fell behind since the last poll) or is unreachable
+            Trace.warn("MW::" + tag + " follower read on " + r.endpoint + " failed: " + e.getMessage());
+            return primary().sendInt(method, args);
+        } finally {
+            r.inflight.decrementAndGet();
+        }
+    }
+
+    // Least-loaded replica satisfying the bound, or null to use the primary
+    private Replica pick(ReadBound bound) {
+        if (replicas.size() == 1 || bound.maxLagMillis <= 0 && bound.maxLagPositions <= 0) return null;
+        long now = System.currentTimeMillis();
+        Replica best = null;
+        // start at a rotating offset so that ties are spread over the replicas
+        int start = Math.floorMod(rotation.getAndIncrement(), replicas.size());
+        for (int k = 0; k < replicas.size(); k++) {
+            Replica r = replicas.get((start + k) % replicas.size());
+            // a replica we have not heard from recently may be arbitrarily behind
+            if (r != replicas.get(0) && now - r.polledAt > bound.maxLagMillis) continue;
+            if (head - r.applied > bound.maxLagPositions) continue;
+            if (lagMillis(r.applied, now) > bound.maxLagMillis) continue;
+            if (best == null || r.inflight.get() < best.inflight.get()) best = r;
+        }
+        return best;
+    }
+
+    private synchronized long lagMillis(long applied, long now) {
+        if (applied >= head) return 0;
+        for (long[] h : headHistory) {
+            if (h[0] > applied) return now - h[1];
+        }
+        return 0;
+    }
+
+    public void poll() {
+        long minApplied = Long.MAX_VALUE;
+        for (Replica r : replicas) {
+            try {
+                List<String> st = r.client.sendList("replicaStatus");
+                r.applied = Long.parseLong(st.get(0));
+                r.polledAt = System.currentTimeMillis();
+            } catch (Exception e) {
+                Trace.warn("MW::" + tag + " replicaStatus from " + r.endpoint + " failed: " + e.getMessage());
+            }
+            minApplied = Math.min(minApplied, r.applied);
+            observe(r.applied, System.currentTimeMillis());
+        }
+        synchronized (this) {
+            while (headHistory.size() > 1 && headHistory.peekFirst()[0] <= minApplied) headHistory.pollFirst();
+        }
+    }
+
+    private synchronized void observe(long position, long now) {
+        if (position > head) {
+            headHistory.addLast(new long[]{position, now});
+            head = position;
+        }
+    }
+
+    public void close() {
+        for (Replica r : replicas) {
+            try { r.client.close(); } catch (Exception ignored) {}
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package Server.Middleware;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reverse index of this Middleware's reservations: item key ("flight-12") to the
+ * customers holding it and how many units each holds. Kept in step with the
+ * customers' bills so an item can be cancelled for all of its holders without
+ * scanning every customer.
+ *
+ * Each item's holder map is only touched inside the outer map's compute calls,
+ * so it needs no locking of its own.
+ */
+public class ReservationIndex {
+
+    private final ConcurrentHashMap<String, Map<Integer, Integer>> holders = new ConcurrentHashMap<>();
+
+    public void add(String key, int customerID, int count) {
+        holders.compute(key.toLowerCase(), (k, m) -> {
+            if (m == null) m = new HashMap<>();
+            m.merge(customerID, count, Integer::sum);
+            return m;
+        });
+    }
+
+    public void remove(String key, int customerID) {
+        holders.computeIfPresent(key.toLowerCase(), (k, m) -> {
+            m.remove(customerID);
+            return m.isEmpty() ? null : m;
+        });
+    }
+
+    // Copy of the holders of an item: customer ID -> units held
+    public Map<Integer, Integer> holders(String key) {
+        Map<Integer, Integer> copy = new HashMap<>();
+        holders.computeIfPresent(key.toLowerCase(), (k, m) -> {
+            copy.putAll(m);
+            return m;
+        });
+        return copy;
+    }
+
+    public int items() {
+        return holders.size();
+    }
+}
@@ -0,0 +1,434 @@
+package Server.Middleware;
+
+import Server.Common.Trace;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * The set of RMs serving one resource type (Flights, Cars or Rooms). Item keys
+ * ("flight-12", "car-montreal", ...) are partitioned over the RMs with a
+ * consistent-hash ring, so the Middleware can scale a resource type out by
+ * starting more RMs.
+ *
+ * Each ring node is a {@link ReplicaSet}; writes go to its primary and plain
+ * queries may be served by a replica within the configured {@link ReadBound}.
+ *
+ * Adding an RM is done online: the items that will hash to the new RM are moved
+ * over in small batches while requests keep running. Each batch is copied first,
+ * then ownership is flipped under the write lock (re-copying any item written in
+ * the meantime), then the old copies are dropped. Requests take the read lock, so
+ * none observes an item half-way through a move, and the ring itself only gains
+ * the new RM once every item is in place. Keys routed to an old owner during the
+ * move are remembered, so items created meanwhile are moved without rescanning
+ * the old owners.
+ */
+public class ResourceManagerGroup {
+
+    private static final long POLL_MILLIS = Long.getLong("mw.replica.pollMillis", 50);
+    private static final int MOVE_BATCH = Integer.getInteger("mw.rebalance.batch", 16);
+
+    private final String tag;
+    private final ConsistentHashRing<ReplicaSet> ring = new ConsistentHashRing<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Items already moved to an RM that isn't on the ring yet, and that RM (guarded by lock)
+    private final Map<String, ReplicaSet> moved = new HashMap<>();
+    private ReplicaSet joining;
+    private ConsistentHashRing<ReplicaSet> target;   // the ring with joining on it
+    // Keys sent to an old owner while joining will own them; they may have been created there
+    private final Set<String> late = ConcurrentHashMap.newKeySet();
+    private volatile ReadBound readBound = ReadBound.fromSystemProperties();
+    private Thread poller;
+
+    public ResourceManagerGroup(String tag) {
+        this.tag = tag;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public static String endpoint(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * Adds an RM partition without moving any data (used while the group is being
+     * built). The spec is "host:port", or "primary:port|replica:port|..." for a
+     * replicated partition whose replicas can serve reads.
+     */
+    public void add(String spec) throws IOException {
+        ReplicaSet rs = new ReplicaSet(tag, spec);
+        lock.writeLock().lock();
+        try {
+            ring.add(spec, rs);
+            if (rs.size() > 1) startPoller();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void setReadBound(ReadBound bound) {
+        this.readBound = bound;
+    }
+
+    private void startPoller() {
+        if (poller != null) return;
+        poller = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<ReplicaSet> sets;
+                lock.readLock().lock();
+                try {
+                    sets = members();
+                } finally {
+                    lock.readLock().unlock();
+                }
+                for (ReplicaSet rs : sets) {
+                    if (rs.size() > 1) rs.poll();
+                }
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "ReplicaPoller-" + tag);
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    // Owner of a key: the ring's choice unless the key has already moved to a joining RM.
+    // Caller holds lock.
+    private ReplicaSet route(String key) {
+        ReplicaSet rs = moved.get(key);
+        if (rs != null) return rs;
+        if (target != null && target.get(key) == joining) late.add(key);
+        return ring.get(key);
+    }
+
+    // Every RM that may own keys, including one that is joining. Caller holds lock.
+    private List<ReplicaSet> members() {
+        List<ReplicaSet> sets = new ArrayList<>(ring.nodes());
+        if (joining != null) sets.add(joining);
+        return sets;
+    }
+
+    /**
+     * Adds an RM to a live group and migrates the items that hash to it. If a move
+     * fails, the items already moved are moved back and the group keeps its old
+     * layout; items that can't be moved back stay routed to the new RM.
+     *
+     * @return number of items moved
+     */
+    public synchronized int addAndRebalance(String spec) throws IOException {
+        ReplicaSet added = new ReplicaSet(tag, spec);
+        List<ReplicaSet> previous;
+
+        lock.writeLock().lock();
+        try {
+            previous = new ArrayList<>(ring.nodes());
+            target = ring.copy();
+            target.add(spec, added);
+            late.clear();
+            joining = added;
+            if (added.size() > 1) startPoller();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // key -> RM it was moved from
+        Map<String, ReplicaSet> done = new LinkedHashMap<>();
+        try {
+            for (ReplicaSet prev : previous) {
+                List<String> batch = new ArrayList<>();
+                for (String key : prev.primary().sendList("listKeys")) {
+                    if (target.get(key) != added) continue;
+                    batch.add(key);
+                    if (batch.size() == MOVE_BATCH) {
+                        moveBatch(batch, prev, added, done);
+                        batch.clear();
+                    }
+                }
+                moveBatch(batch, prev, added, done);
+            }
+
+            // Items written on an old owner during the move (typically created there): move
+            // them the same way, then take whatever was written since under the lock. Those
+            // only count as moved once the ring flips, so a failure leaves their old owners in charge.
+            moveLate(added, done);
+            Map<String, ReplicaSet> last = new LinkedHashMap<>();
+            lock.writeLock().lock();
+            try {
+                for (String key : late) {
+                    if (done.containsKey(key)) continue;
+                    ReplicaSet prev = ring.get(key);
+                    List<String> item = prev.primary().sendList("exportItem", key);
+                    if (item.size() < 4) continue;
+                    importItem(added, key, item);
+                    last.put(key, prev);
+                }
+                ring.add(spec, added);
+                moved.clear();
+                late.clear();
+                joining = null;
+                target = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Map.Entry<String, ReplicaSet> e : last.entrySet()) {
+                dropItem(e.getValue(), e.getKey());
+            }
+            done.putAll(last);
+        } catch (IOException e) {
+            Trace.warn("MW::" + tag + " adding RM " + spec + " failed after moving " + done.size() + " items: " + e.getMessage());
+            rollback(added, done);
+            throw e;
+        }
+        Trace.info("MW::" + tag + " added RM " + spec + ", moved " + done.size() + " items (" + size() + " RMs)");
+        return done.size();
+    }
+
+    // Moves the keys noted in late so far, batched by their current owner
+    private void moveLate(ReplicaSet added, Map<String, ReplicaSet> done) throws IOException {
+        Map<ReplicaSet, List<String>> byOwner = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String key : late) {
+                if (!done.containsKey(key)) byOwner.computeIfAbsent(ring.get(key), rs -> new ArrayList<>()).add(key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Map.Entry<ReplicaSet, List<String>> e : byOwner.entrySet()) {
+            List<String> keys = e.getValue();
+            for (int i = 0; i < keys.size(); i += MOVE_BATCH) {
+                moveBatch(keys.subList(i, Math.min(keys.size(), i + MOVE_BATCH)), e.getKey(), added, done);
+            }
+        }
+    }
+
+    // Copies a batch of items, flips their ownership under the write lock (re-copying any
+    // written since the first copy) and then drops the old copies
+    private void moveBatch(List<String> keys, ReplicaSet from, ReplicaSet to, Map<String, ReplicaSet> done) throws IOException {
+        if (keys.isEmpty()) return;
+        Map<String, List<String>> copied = new LinkedHashMap<>();
+        for (String key : keys) {
+            List<String> item = from.primary().sendList("exportItem", key);
+            if (item.size() < 4) continue; // deleted since it was listed
+            importItem(to, key, item);
+            copied.put(key, item);
+        }
+
+        List<String> flipped = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, List<String>> e : copied.entrySet()) {
+                String key = e.getKey();
+                List<String> now = from.primary().sendList("exportItem", key);
+                if (now.size() < 4) {
+                    dropItem(to, key);
+                    continue;
+                }
+                if (!now.equals(e.getValue())) importItem(to, key, now);
+                moved.put(key, to);
+                done.put(key, from);
+                flipped.add(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (String key : flipped) {
+            dropItem(from, key);
+        }
+    }
+
+    private void importItem(ReplicaSet to, String key, List<String> item) throws IOException {
+        boolean ok = to.primary().sendBool("importItem", key, item.get(0),
+                Integer.parseInt(item.get(1)), Integer.parseInt(item.get(2)), Integer.parseInt(item.get(3)));
+        if (!ok) throw new IOException("importItem(" + key + ") refused by " + to);
+    }
+
+    // The item is already served from elsewhere, so a failed drop only leaves a stray copy
+    private void dropItem(ReplicaSet from, String key) {
+        try {
+            from.primary().sendBool("dropItem", key);
+        } catch (IOException e) {
+            Trace.warn("MW::" + tag + " dropItem(" + key + ") on " + from + " failed: " + e.getMessage());
+        }
+    }
+
+    // Moves items back to the RMs they came from after a failed addAndRebalance
+    private void rollback(ReplicaSet added, Map<String, ReplicaSet> done) {
+        Map<ReplicaSet, List<String>> byOwner = new LinkedHashMap<>();
+        for (Map.Entry<String, ReplicaSet> e : done.entrySet()) {
+            byOwner.computeIfAbsent(e.getValue(), rs -> new ArrayList<>()).add(e.getKey());
+        }
+        for (Map.Entry<ReplicaSet, List<String>> e : byOwner.entrySet()) {
+            List<String> keys = e.getValue();
+            for (int i = 0; i < keys.size(); i += MOVE_BATCH) {
+                try {
+                    moveBatch(keys.subList(i, Math.min(keys.size(), i + MOVE_BATCH)), added, e.getKey(), new HashMap<>());
+                } catch (IOException ex) {
+                    Trace.warn("MW::" + tag + " moving items back to " + e.getKey() + " failed: " + ex.getMessage());
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            // keys routed back to their ring owner need no override; the rest stay on added
+            moved.values().removeIf(rs -> rs != added);
+            target = null;
+            late.clear();
+            int stranded = moved.size();
+            if (stranded == 0) {
+                joining = null;
+            } else {
+                Trace.warn("MW::" + tag + " " + stranded + " items could not be moved back and stay on " + added);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean sendBool(String key, String method, Object... args) throws IOException {
+        lock.readLock().lock();
+        try {
+            return route(key).primary().sendBool(method, args);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int sendInt(String key, String method, Object... args) throws IOException {
+        lock.readLock().lock();
+        try {
+            return route(key).primary().sendInt(method, args);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String sendString(String key, String method, Object... args) throws IOException {
+        lock.readLock().lock();
+        try {
+            return route(key).primary().sendString(method, args);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Releases a customer's units of several items with one releaseReservations call
+     * per RM that owns any of them.
+     *
+     * @return false if an RM failed or didn't know one of the items
+     */
+    public boolean releaseReservations(int customerID, Map<String, Integer> items) {
+        lock.readLock().lock();
+        try {
+            Map<ReplicaSet, List<Object>> byOwner = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> e : items.entrySet()) {
+                List<Object> args = byOwner.computeIfAbsent(route(e.getKey()), rs -> new ArrayList<>(Collections.singletonList(customerID)));
+                args.add(e.getKey());
+                args.add(e.getValue());
+            }
+            boolean ok = true;
+            for (Map.Entry<ReplicaSet, List<Object>> e : byOwner.entrySet()) {
+                try {
+                    ok &= e.getKey().primary().sendBool("releaseReservations", e.getValue().toArray());
+                } catch (IOException ex) {
+                    Trace.warn("MW::" + tag + " releaseReservations(" + customerID + ") failed: " + ex.getMessage());
+                    ok = false;
+                }
+            }
+            return ok;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bulk availability/price lookup split by owning RM: one task per RM, each making a
+     * single queryItems call and returning key -> {available, price}. The caller decides
+     * how to run them (the Middleware runs them in parallel).
+     */
+    public List<Supplier<Map<String, int[]>>> queryItemsByOwner(Collection<String> keys) {
+        Map<ReplicaSet, Vector<String>> byOwner = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String key : keys) {
+                byOwner.computeIfAbsent(route(key), rs -> new Vector<>()).add(key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Supplier<Map<String, int[]>>> tasks = new ArrayList<>();
+        for (Map.Entry<ReplicaSet, Vector<String>> e : byOwner.entrySet()) {
+            tasks.add(() -> {
+                Vector<String> asked = e.getValue();
+                Map<String, int[]> result = new HashMap<>();
+                lock.readLock().lock();
+                try {
+                    List<String> reply = e.getKey().primary().sendList("queryItems", asked.toArray());
+                    for (int i = 0; i < asked.size() && 2 * i + 1 < reply.size(); i++) {
+                        result.put(asked.get(i), new int[] {Integer.parseInt(reply.get(2 * i)), Integer.parseInt(reply.get(2 * i + 1))});
+                    }
+                } catch (IOException ex) {
+                    Trace.warn("MW::" + tag + " queryItems failed: " + ex.getMessage());
+                } finally {
+                    lock.readLock().unlock();
+                }
+                return result;
+            });
+        }
+        return tasks;
+    }
+
+    // Sends a list-valued call to the primary of every RM in the group, one result per RM
+    public List<List<String>> sendAllList(String method, Object... args) throws IOException {
+        lock.readLock().lock();
+        try {
+            List<List<String>> results = new ArrayList<>();
+            for (ReplicaSet rs : members()) {
+                results.add(rs.primary().sendList(method, args));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Read-only call that may be served by a replica within the configured staleness bound
+    public int readInt(String key, String method, Object... args) throws IOException {
+        lock.readLock().lock();
+        try {
+            return route(key).readInt(readBound, method, args);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ring.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (poller != null) poller.interrupt();
+            for (ReplicaSet rs : members()) {
+                rs.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package Server.Middleware;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one Middleware to RM round trip, including a reconnect and resend
+ * when the first attempt finds the connection broken.
+ */
+@Label("RM Round Trip")
+@Category({"Reservations", "Middleware"})
+@Description("A call from the Middleware to a Resource Manager")
+@StackTrace(false)
+public class RmCallEvent extends Event {
+
+    @Label("Resource Manager")
+    public String rm;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Trace ID")
+    public String traceId;
+
+    @Label("Succeeded")
+    public boolean ok;
+}
@@ -1,10 +1,19 @@
 package Server.Middleware;
 
+import Server.Common.MethodStats;
+import Server.Common.SpanSink;
 import Server.Common.Trace;
+import Server.Common.TraceContext;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 
 public class TCPResourceManagerClient {
@@ -13,6 +22,11 @@ public class TCPResourceManagerClient {
     private final int port;
     private final String tag; // for logging
 
+    // Calls that undo or finish work already done for a request (rollback, moving items);
+    // they run even after the request's deadline, or the RMs would be left inconsistent
+    private static final Set<String> MUST_COMPLETE = new HashSet<>(Arrays.asList(
+            "removeReservation", "removeReservations", "releaseReservations", "importItem", "dropItem"));
+
     private Socket socket;
     private BufferedReader in;
     private BufferedWriter out;
@@ -24,15 +38,19 @@ public class TCPResourceManagerClient {
         connect(true);
     }
 
-    public synchronized boolean sendBool(String method, Object... args) throws IOException {
+    public boolean sendBool(String method, Object... args) throws IOException {
         String s = send(method, args);
         ensureOk(s);
         return s.replaceAll("\\s+", "").contains("\"response\":true");
     }
 
-    public synchronized int sendInt(String method, Object... args) throws IOException {
+    public int sendInt(String method, Object... args) throws IOException {
         String s = send(method, args);
         ensureOk(s);
+        return parseInt(s);
+    }
+
+    private int parseInt(String s) throws IOException {
         String flat = s.replaceAll("\\s+", "");
         int idx = flat.indexOf("\"response\":");
         if (idx < 0) throw new IOException("Malformed response from " + tag);
@@ -50,7 +68,7 @@ public class TCPResourceManagerClient {
         }
     }
 
-    public synchronized String sendString(String method, Object... args) throws IOException {
+    public String sendString(String method, Object... args) throws IOException {
         String s = send(method, args);
         ensureOk(s);
         String flat = s.replaceAll("\\s+", "");
@@ -70,30 +88,151 @@ public class TCPResourceManagerClient {
         return out.toString();
     }
 
-    private String send(String method, Object... args) throws IOException {
+    public List<String> sendList(String method, Object... args) throws IOException {
+        String s = send(method, args);
+        ensureOk(s);
+        List<String> list = new ArrayList<>();
+        int idx = s.indexOf("\"response\":[");
+        if (idx < 0) {
+            if (s.replaceAll("\\s+", "").contains("\"response\":null")) return list;
+            throw new IOException("Expected list response from " + tag);
+        }
+        int p = idx + 12;
+        StringBuilder tok = new StringBuilder();
+        boolean inStr = false, esc = false;
+        for (; p < s.length(); p++) {
+            char c = s.charAt(p);
+            if (inStr) {
+                if (esc) { tok.append(c); esc = false; continue; }
+                if (c == '\\') { esc = true; continue; }
+                if (c == '"') { inStr = false; continue; }
+                tok.append(c);
+                continue;
+            }
+            if (c == '"') { inStr = true; continue; }
+            if (c == ',' || c == ']') {
+                String t = tok.toString().trim();
+                if (!t.isEmpty()) list.add(t);
+                tok.setLength(0);
+                if (c == ']') break;
+                continue;
+            }
+            tok.append(c);
+        }
+        return list;
+    }
+
+    // Read served by a replica only if it has applied at least minPosition log entries
+    public int readInt(long minPosition, String method, Object... args) throws IOException {
         String payload = buildJson(method, args);
+        String s = sendPayload(method, payload.substring(0, payload.length() - 1) + ",\"minPosition\":" + minPosition + "}");
+        ensureOk(s);
+        return parseInt(s);
+    }
 
-        try {
-            out.write(payload);
-            out.write("\n");
-            out.flush();
+    private String send(String method, Object... args) throws IOException {
+        return sendPayload(method, buildJson(method, args));
+    }
 
-            String line = in.readLine();
-            if (line == null) throw new IOException("Connection closed by RM: " + tag);
+    // One round trip, timed under "<tag>/<method>" in the process's MethodStats and counted
+    // against the current request; the time includes waiting for this shared connection,
+    // which only one request can use at a time (replies are parsed outside it). Inside a
+    // traced request it also gets its own span, whose ID the RM records as its parent.
+    private String sendPayload(String method, String payload) throws IOException {
+        TraceContext current = TraceContext.current();
+        TraceContext trace = current != null && current.traced() ? current : null;
+        String spanId = null;
+        if (trace != null) {
+            spanId = TraceContext.newId();
+            payload = payload.substring(0, payload.length() - 1)
+                    + ",\"trace\":\"" + trace.traceId + "\",\"parent\":\"" + spanId + "\"}";
+        }
+        boolean bounded = current != null && current.hasDeadline() && !MUST_COMPLETE.contains(method);
+        long start = System.nanoTime();
+        long startMicros = SpanSink.nowMicros();
+        RmCallEvent event = new RmCallEvent();
+        event.begin();
+        boolean ok = false;
+        try {
+            String line;
+            synchronized (this) {
+                // Within a deadline, the RM gets what is left of it once the connection is free,
+                // and a read is abandoned when it runs out. Writes are never cut short: their
+                // outcome must be known.
+                int readTimeout = 0;
+                if (bounded) {
+                    long remaining = current.remainingMillis();
+                    if (remaining == 0) {
+                        throw new IOException("Deadline exceeded before calling " + tag + "/" + method);
+                    }
+                    payload = payload.substring(0, payload.length() - 1) + ",\"timeout\":" + remaining + "}";
+                    if (isRead(method)) {
+                        readTimeout = (int) Math.min(Integer.MAX_VALUE, remaining);
+                    }
+                }
+                line = roundTrip(payload, readTimeout);
+            }
+            ok = !line.contains("\"status\":\"failed\"");
             return line;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.rm = tag;
+                event.method = method;
+                event.traceId = trace == null ? null : trace.traceId;
+                event.ok = ok;
+                event.commit();
+            }
+            MethodStats.record(tag + "/" + method, start, ok);
+            if (current != null) {
+                current.addDownstream(System.nanoTime() - start);
+            }
+            if (trace != null) {
+                SpanSink.record(trace.traceId, spanId, trace.spanId, tag + "/" + method,
+                        startMicros, SpanSink.nowMicros() - startMicros, ok);
+            }
+        }
+    }
+
+    private static boolean isRead(String method) {
+        return method.startsWith("query") || method.equals("listKeys") || method.equals("exportItem");
+    }
 
+    // readTimeout in milliseconds, 0 to wait as long as it takes
+    private String roundTrip(String payload, int readTimeout) throws IOException {
+        try {
+            return exchange(payload, readTimeout, "Connection closed by RM: " + tag);
+        } catch (SocketTimeoutException e) {
+            throw abandon();
         } catch (IOException e) {
             Trace.warn("[" + tag + "] connection issue: " + e.getMessage() + " -> reconnecting");
             reconnect();
-            out.write(payload);
-            out.write("\n");
-            out.flush();
-            String line = in.readLine();
-            if (line == null) throw new IOException("Connection closed by RM after reconnect: " + tag);
-            return line;
+            try {
+                return exchange(payload, readTimeout, "Connection closed by RM after reconnect: " + tag);
+            } catch (SocketTimeoutException e2) {
+                throw abandon();
+            }
         }
     }
 
+    private String exchange(String payload, int readTimeout, String closedMessage) throws IOException {
+        out.write(payload);
+        out.write("\n");
+        out.flush();
+
+        socket.setSoTimeout(readTimeout);
+        String line = in.readLine();
+        if (line == null) throw new IOException(closedMessage);
+        return line;
+    }
+
+    // A read ran out of time: its late reply would be taken for the next call's, so the
+    // connection is replaced
+    private IOException abandon() throws IOException {
+        reconnect();
+        return new IOException(tag + " did not answer before the deadline");
+    }
+
     private String buildJson(String method, Object... args) {
         StringBuilder b = new StringBuilder();
         b.append("{\"method\":\"").append(esc(method)).append("\",\"args\":[");
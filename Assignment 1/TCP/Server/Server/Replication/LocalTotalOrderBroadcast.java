@@ -0,0 +1,54 @@
+package Server.Replication;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process stand-in for the GCL/Paxos layer. All members of a {@link Group}
+ * live in one JVM; a broadcast takes the group lock, which fixes its position in
+ * the order, and is appended to every member's delivery queue.
+ *
+ * Used to run and measure replicated RMs without starting a Paxos group.
+ */
+public class LocalTotalOrderBroadcast implements TotalOrderBroadcast {
+
+    public static class Group {
+        private final List<LocalTotalOrderBroadcast> members = new CopyOnWriteArrayList<>();
+
+        public LocalTotalOrderBroadcast join() {
+            LocalTotalOrderBroadcast m = new LocalTotalOrderBroadcast(this);
+            members.add(m);
+            return m;
+        }
+
+        private synchronized void publish(Object value) {
+            for (LocalTotalOrderBroadcast m : members) {
+                m.delivered.add(value);
+            }
+        }
+    }
+
+    private final Group group;
+    private final BlockingQueue<Object> delivered = new LinkedBlockingQueue<>();
+
+    private LocalTotalOrderBroadcast(Group group) {
+        this.group = group;
+    }
+
+    @Override
+    public void broadcastTOMsg(Object value) {
+        group.publish(value);
+    }
+
+    @Override
+    public Object acceptTOMsg() throws InterruptedException {
+        return delivered.take();
+    }
+
+    @Override
+    public void shutdown() {
+        group.members.remove(this);
+    }
+}
@@ -0,0 +1,19 @@
+package Server.Replication;
+
+import java.io.Serializable;
+
+// Records streamed from a log-shipping primary to its standby
+class LogEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final long position;   // 1-based position in the primary's mutation log
+    final long millis;     // when the primary appended it
+    final Object value;
+
+    LogEntry(long position, long millis, Object value) {
+        this.position = position;
+        this.millis = millis;
+        this.value = value;
+    }
+}
@@ -0,0 +1,192 @@
+package Server.Replication;
+
+import Server.Common.Trace;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Log-shipping primary: a cheaper alternative to Paxos for a single hot standby.
+ *
+ * Mutations are ordered and applied locally right away (the caller never waits
+ * for the standby) and streamed asynchronously to the standby connected on
+ * {@code shipPort}. A standby that connects first receives a snapshot taken at a
+ * log position, then every entry after it. The standby acknowledges the
+ * positions it has applied, which gives the replication lag.
+ *
+ * At most -Drm.ship.maxBacklog entries (default 65536) are kept for a standby
+ * that has not acknowledged them. A standby that falls further behind is sent a
+ * fresh snapshot instead, so a stalled standby costs the primary bounded memory.
+ */
+public class LogShippingPrimary implements TotalOrderBroadcast, ReplicationLag {
+
+    static final int MAX_BACKLOG = Integer.getInteger("rm.ship.maxBacklog", 65536);
+
+    private final BlockingQueue<Object> local = new LinkedBlockingQueue<>();
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    private long position;                                           // guarded by this
+    private volatile BlockingQueue<Object> standbyQueue;             // LogEntry or SnapshotRequest; null while no standby is attached
+    private final ArrayDeque<long[]> unacked = new ArrayDeque<>();   // {position, millis}, guarded by itself
+    private volatile long acked;
+
+    public LogShippingPrimary(int shipPort) throws IOException {
+        this.serverSocket = new ServerSocket(shipPort);
+        this.acceptor = new Thread(this::acceptLoop, "log-ship-accept-" + shipPort);
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+        System.out.println("[LogShippingPrimary] shipping log on :" + shipPort);
+    }
+
+    @Override
+    public synchronized void broadcastTOMsg(Object value) {
+        LogEntry e = new LogEntry(++position, System.currentTimeMillis(), value);
+        local.add(value);
+        BlockingQueue<Object> q = standbyQueue;
+        if (q != null) {
+            synchronized (unacked) {
+                if (unacked.size() >= MAX_BACKLOG || !q.offer(e)) {
+                    resync(q);
+                    return;
+                }
+                unacked.addLast(new long[]{e.position, e.millis});
+            }
+        }
+    }
+
+    // Caller holds this and unacked. Replaces the standby's backlog with a snapshot taken
+    // after the entry just appended; entries already queued are covered by it.
+    private void resync(BlockingQueue<Object> q) {
+        Trace.warn("LogShippingPrimary: standby is " + unacked.size() + " entries behind, sending a snapshot instead");
+        q.clear();
+        unacked.clear();
+        SnapshotRequest req = new SnapshotRequest();
+        local.add(req);
+        q.add(req);
+    }
+
+    @Override
+    public Object acceptTOMsg() throws InterruptedException {
+        return local.take();
+    }
+
+    @Override
+    public void shutdown() {
+        try { serverSocket.close(); } catch (IOException ignored) {}
+        acceptor.interrupt();
+    }
+
+    @Override
+    public String role() {
+        return standbyQueue == null ? "primary (no standby)" : "primary";
+    }
+
+    @Override
+    public synchronized long lagEntries() {
+        return standbyQueue == null ? 0 : position - acked;
+    }
+
+    @Override
+    public long lagMillis() {
+        synchronized (unacked) {
+            long[] oldest = unacked.peekFirst();
+            return oldest == null ? 0 : System.currentTimeMillis() - oldest[1];
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+                if (standbyQueue != null) {
+                    Trace.warn("LogShippingPrimary: refusing second standby " + s.getRemoteSocketAddress());
+                    s.close();
+                    continue;
+                }
+                ship(s);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) Trace.warn("LogShippingPrimary: accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void ship(Socket s) {
+        BlockingQueue<Object> q = new LinkedBlockingQueue<>(MAX_BACKLOG);
+        SnapshotRequest req = new SnapshotRequest();
+        synchronized (this) {
+            // every entry after the marker goes to the standby queue; the ones before are in the snapshot
+            standbyQueue = q;
+            acked = position;
+            local.add(req);
+            q.add(req);
+        }
+        Trace.info("LogShippingPrimary: standby " + s.getRemoteSocketAddress() + " attached");
+
+        Thread shipper = new Thread(() -> {
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+                long snapped = 0;
+                List<Object> batch = new ArrayList<>();
+                while (true) {
+                    batch.add(q.take());
+                    q.drainTo(batch);
+                    for (Object o : batch) {
+                        if (o instanceof SnapshotRequest) {
+                            LogSnapshot snap = ((SnapshotRequest) o).snapshot.get();
+                            out.writeObject(snap);
+                            snapped = snap.position;
+                            Trace.info("LogShippingPrimary: sent snapshot at position " + snap.position);
+                        } else if (((LogEntry) o).position > snapped) {
+                            out.writeObject(o);
+                        }
+                    }
+                    out.flush();
+                    out.reset();
+                    batch.clear();
+                }
+            } catch (Exception e) {
+                Trace.warn("LogShippingPrimary: standby detached: " + e.getMessage());
+            } finally {
+                detach(s, q);
+            }
+        }, "log-ship-out");
+
+        Thread acks = new Thread(() -> {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+                while (true) {
+                    long a = in.readLong();
+                    if (standbyQueue != q) break;   // a newer standby has taken over
+                    acked = a;
+                    synchronized (unacked) {
+                        while (!unacked.isEmpty() && unacked.peekFirst()[0] <= a) unacked.pollFirst();
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+            detach(s, q);
+        }, "log-ship-ack");
+
+        shipper.setDaemon(true);
+        acks.setDaemon(true);
+        shipper.start();
+        acks.start();
+    }
+
+    // Only forgets the standby if q is still its queue: the threads of a standby that has
+    // already been replaced must not detach the new one
+    private synchronized void detach(Socket s, BlockingQueue<Object> q) {
+        try { s.close(); } catch (IOException ignored) {}
+        if (standbyQueue != q) return;
+        standbyQueue = null;
+        synchronized (unacked) {
+            unacked.clear();
+        }
+    }
+}
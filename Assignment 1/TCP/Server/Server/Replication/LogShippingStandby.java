@@ -0,0 +1,165 @@
+package Server.Replication;
+
+import Server.Common.Trace;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Hot standby fed by a {@link LogShippingPrimary}. It installs the primary's
+ * snapshot and then applies the streamed entries as they arrive, so its state
+ * is warm when it takes over. Until {@link #promote()} it only serves reads.
+ *
+ * At most -Drm.ship.maxBacklog received entries wait to be applied; beyond that
+ * the standby stops reading, and the primary, once its own backlog is full,
+ * sends a snapshot instead.
+ */
+public class LogShippingStandby implements TotalOrderBroadcast, ReplicationLag {
+
+    private static final long ACK_MILLIS = 20;
+
+    private final BlockingQueue<Object> delivered = new LinkedBlockingQueue<>(LogShippingPrimary.MAX_BACKLOG);   // LogEntry, LogSnapshot, or a local write once promoted
+    private final ArrayDeque<long[]> pending = new ArrayDeque<>();   // {position, primaryMillis} received, not yet taken
+    private final Socket socket;
+    private final Thread reader;
+    private final Thread acker;
+
+    private volatile boolean promoted = false;
+    private volatile long received;   // last position received from the primary
+    private volatile long taken;      // last position handed to the applier
+
+    public LogShippingStandby(String primaryHost, int shipPort) throws IOException {
+        this.socket = new Socket(primaryHost, shipPort);
+        this.socket.setTcpNoDelay(true);
+        this.reader = new Thread(this::readLoop, "log-standby-in");
+        this.acker = new Thread(this::ackLoop, "log-standby-ack");
+        reader.setDaemon(true);
+        acker.setDaemon(true);
+        reader.start();
+        acker.start();
+        System.out.println("[LogShippingStandby] following primary " + primaryHost + ":" + shipPort);
+    }
+
+    private void readLoop() {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!promoted) {
+                Object o = in.readObject();
+                if (o instanceof LogSnapshot) {
+                    LogSnapshot snap = (LogSnapshot) o;
+                    // the snapshot covers every entry before it, and entries after it follow it
+                    synchronized (pending) {
+                        pending.clear();
+                        received = snap.position;
+                    }
+                    delivered.put(snap);
+                    Trace.info("LogShippingStandby: received snapshot at position " + snap.position);
+                } else if (o instanceof LogEntry) {
+                    LogEntry e = (LogEntry) o;
+                    synchronized (pending) {
+                        pending.addLast(new long[]{e.position, e.millis});
+                        received = e.position;
+                    }
+                    // blocks while the applier is behind, which backs up the primary's stream
+                    delivered.put(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        } catch (IOException | ClassNotFoundException e) {
+            if (!promoted) Trace.warn("LogShippingStandby: lost primary: " + e.getMessage() + " (promote to take over)");
+        }
+    }
+
+    private void ackLoop() {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            long last = -1;
+            while (!promoted) {
+                long t = taken;
+                if (t != last) {
+                    out.writeLong(t);
+                    out.flush();
+                    last = t;
+                }
+                Thread.sleep(ACK_MILLIS);
+            }
+        } catch (IOException | InterruptedException ignored) {
+        }
+    }
+
+    @Override
+    public void broadcastTOMsg(Object value) {
+        if (!promoted) {
+            throw new IllegalStateException("standby is read-only until promoted");
+        }
+        try {
+            delivered.put(value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while queueing a write", e);
+        }
+    }
+
+    @Override
+    public Object acceptTOMsg() throws InterruptedException {
+        Object o = delivered.take();
+        // taken follows the stream order, so it never moves backwards; pending may already
+        // have been cleared by a snapshot that arrived after this entry
+        if (o instanceof LogSnapshot) {
+            taken = ((LogSnapshot) o).position;
+        } else if (o instanceof LogEntry) {
+            taken = ((LogEntry) o).position;
+        } else {
+            return o;   // written locally after promotion
+        }
+        synchronized (pending) {
+            while (!pending.isEmpty() && pending.peekFirst()[0] <= taken) pending.pollFirst();
+        }
+        return o instanceof LogEntry ? ((LogEntry) o).value : o;
+    }
+
+    /**
+     * Stops following the primary and starts accepting writes. Entries already
+     * received are still applied first, in order.
+     */
+    public void promote() {
+        if (promoted) return;
+        promoted = true;
+        try { socket.close(); } catch (IOException ignored) {}
+        acker.interrupt();
+        Trace.info("LogShippingStandby: promoted at position " + received + " (" + lagEntries() + " entries still to apply)");
+    }
+
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    @Override
+    public void shutdown() {
+        promoted = true;
+        try { socket.close(); } catch (IOException ignored) {}
+        reader.interrupt();
+        acker.interrupt();
+    }
+
+    @Override
+    public String role() {
+        return promoted ? "promoted standby" : "standby";
+    }
+
+    @Override
+    public long lagEntries() {
+        return Math.max(0, received - taken);
+    }
+
+    @Override
+    public long lagMillis() {
+        synchronized (pending) {
+            long[] oldest = pending.peekFirst();
+            return oldest == null ? 0 : System.currentTimeMillis() - oldest[1];
+        }
+    }
+}
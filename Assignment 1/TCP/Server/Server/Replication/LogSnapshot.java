@@ -0,0 +1,19 @@
+package Server.Replication;
+
+import Server.Common.RMHashMap;
+
+import java.io.Serializable;
+
+// Full RM state as of a log position; the standby starts from it and then applies entries after it
+class LogSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final long position;
+    final RMHashMap data;
+
+    LogSnapshot(long position, RMHashMap data) {
+        this.position = position;
+        this.data = data;
+    }
+}
@@ -0,0 +1,66 @@
+package Server.Replication;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+
+/**
+ * Adapter over the Assignment 2 {@code comp512st.paxos.Paxos} class.
+ *
+ * The Paxos module and its GCL layer ship in comp512p2.jar, which is not on the
+ * Assignment 1 build path, so the class is bound reflectively: put comp512p2.jar
+ * and the compiled comp512st classes on the RM's classpath to use it.
+ */
+public class PaxosTotalOrderBroadcast implements TotalOrderBroadcast {
+
+    private final Object paxos;
+    private final Method broadcast;
+    private final Method accept;
+    private final Method shutdown;
+
+    public PaxosTotalOrderBroadcast(String myProcess, String[] allProcesses) throws Exception {
+        Class<?> paxosClass = Class.forName("comp512st.paxos.Paxos");
+        Class<?> failCheckClass = Class.forName("comp512.utils.FailCheck");
+        Logger logger = Logger.getLogger("RM-Paxos-" + myProcess);
+
+        Object failCheck = failCheckClass.getConstructor(Logger.class).newInstance(logger);
+        Constructor<?> ctor = paxosClass.getConstructor(String.class, String[].class, Logger.class, failCheckClass);
+        this.paxos = ctor.newInstance(myProcess, allProcesses, logger, failCheck);
+        this.broadcast = paxosClass.getMethod("broadcastTOMsg", Object.class);
+        this.accept = paxosClass.getMethod("acceptTOMsg");
+        this.shutdown = paxosClass.getMethod("shutdownPaxos");
+    }
+
+    @Override
+    public void broadcastTOMsg(Object value) {
+        try {
+            broadcast.invoke(paxos, value);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Paxos broadcast failed", unwrap(e));
+        }
+    }
+
+    @Override
+    public Object acceptTOMsg() throws InterruptedException {
+        try {
+            return accept.invoke(paxos);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof InterruptedException) throw (InterruptedException) e.getCause();
+            throw new IllegalStateException("Paxos accept failed", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Paxos accept failed", e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            shutdown.invoke(paxos);
+        } catch (Exception ignored) {}
+    }
+
+    private static Throwable unwrap(Exception e) {
+        return e instanceof InvocationTargetException ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,31 @@
+package Server.Replication;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// One ResourceManager mutation as it travels through the total-order broadcast
+public class ReplicatedCommand implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final String origin;   // replica that accepted the client request
+    final long seq;        // per-origin sequence number
+    final String method;
+    final Object[] args;
+
+    ReplicatedCommand(String origin, long seq, String method, Object[] args) {
+        this.origin = origin;
+        this.seq = seq;
+        this.method = method;
+        this.args = args;
+    }
+
+    String id() {
+        return origin + "#" + seq;
+    }
+
+    @Override
+    public String toString() {
+        return "CMD{" + id() + " " + method + Arrays.toString(args) + "}";
+    }
+}
@@ -0,0 +1,313 @@
+package Server.Replication;
+
+import Server.Common.*;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ResourceManager replica kept consistent by state-machine replication: every
+ * mutation is sent through a {@link TotalOrderBroadcast} (Paxos in production,
+ * {@link LocalTotalOrderBroadcast} in-process) and applied by every replica in
+ * the delivered order. The call returns once the local replica has applied it.
+ *
+ * Reads are answered from local state, so any replica can serve them; a replica
+ * is at most the commands still in flight behind the group.
+ */
+public class ReplicatedResourceManager extends ResourceManager {
+
+    private final String replicaId;
+    private final TotalOrderBroadcast tob;
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+
+    // number of commands applied so far, i.e. this replica's position in the log
+    private final AtomicLong applied = new AtomicLong();
+    private volatile long lastAppliedMillis = System.currentTimeMillis();
+
+    private final Thread applier;
+    private volatile boolean running = true;
+
+    public ReplicatedResourceManager(String name, String replicaId, TotalOrderBroadcast tob) {
+        super(name);
+        this.replicaId = replicaId;
+        this.tob = tob;
+        this.applier = new Thread(this::applyLoop, "rm-apply-" + name + "-" + replicaId);
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    public TotalOrderBroadcast getBroadcast() {
+        return tob;
+    }
+
+    public long appliedPosition() {
+        return applied.get();
+    }
+
+    public long lastAppliedMillis() {
+        return lastAppliedMillis;
+    }
+
+    public void shutdown() {
+        running = false;
+        applier.interrupt();
+        tob.shutdown();
+    }
+
+    private Object submit(String method, Object... args) throws RemoteException {
+        ReplicatedCommand cmd = new ReplicatedCommand(replicaId, nextSeq.incrementAndGet(), method, args);
+        CompletableFuture<Object> done = new CompletableFuture<>();
+        pending.put(cmd.id(), done);
+        try {
+            ReplicationPhaseEvent order = phase("order", method);
+            tob.broadcastTOMsg(cmd);
+            commit(order, -1);
+            ReplicationPhaseEvent await = phase("await", method);
+            Object result = done.get();
+            commit(await, -1);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while replicating " + method);
+        } catch (ExecutionException e) {
+            throw new RemoteException("Replicated " + method + " failed", e.getCause());
+        } catch (RuntimeException e) {
+            throw new RemoteException("Replicated " + method + " failed", e);
+        } finally {
+            pending.remove(cmd.id());
+        }
+    }
+
+    private void applyLoop() {
+        while (running) {
+            Object msg;
+            try {
+                msg = tob.acceptTOMsg();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (msg instanceof SnapshotRequest) {
+                ((SnapshotRequest) msg).snapshot.complete(new LogSnapshot(applied.get(), snapshotData()));
+                continue;
+            }
+            if (msg instanceof LogSnapshot) {
+                installSnapshot((LogSnapshot) msg);
+                continue;
+            }
+            if (!(msg instanceof ReplicatedCommand)) {
+                Trace.warn("RM::apply ignoring unexpected message " + msg);
+                continue;
+            }
+            ReplicatedCommand cmd = (ReplicatedCommand) msg;
+            CompletableFuture<Object> waiter = replicaId.equals(cmd.origin) ? pending.get(cmd.id()) : null;
+            ReplicationPhaseEvent event = phase("apply", cmd.method);
+            try {
+                Object result = apply(cmd);
+                if (waiter != null) waiter.complete(result);
+            } catch (Exception e) {
+                Trace.warn("RM::apply " + cmd + " failed: " + e.getMessage());
+                if (waiter != null) waiter.completeExceptionally(e);
+            }
+            commit(event, applied.get());
+            applied.incrementAndGet();
+            lastAppliedMillis = System.currentTimeMillis();
+        }
+    }
+
+    private ReplicationPhaseEvent phase(String phase, String method) {
+        ReplicationPhaseEvent e = new ReplicationPhaseEvent();
+        e.phase = phase;
+        e.method = method;
+        e.begin();
+        return e;
+    }
+
+    // position is the command's slot in the log, or -1 where the caller does not know it
+    private void commit(ReplicationPhaseEvent e, long position) {
+        e.end();
+        if (e.shouldCommit()) {
+            e.replica = m_name + "/" + replicaId;
+            e.position = position;
+            e.commit();
+        }
+    }
+
+    // Only called from the applier thread, so the copy is exactly the state at applied.get()
+    private RMHashMap snapshotData() {
+        synchronized (m_data) {
+            RMHashMap copy = (RMHashMap) m_data.clone();
+            for (Map.Entry<String, ShardedCounter> e : m_hot.entrySet()) {
+                RMItem item = copy.get(e.getKey());
+                if (item instanceof ReservableItem) {
+                    ((ReservableItem) item).setCount(e.getValue().available());
+                    ((ReservableItem) item).setReserved(e.getValue().reserved());
+                }
+            }
+            return copy;
+        }
+    }
+
+    private void installSnapshot(LogSnapshot snap) {
+        synchronized (m_data) {
+            m_data.clear();
+            m_data.putAll(snap.data);
+            m_hot.clear();
+        }
+        reindex();
+        applied.set(snap.position);
+        lastAppliedMillis = System.currentTimeMillis();
+        Trace.info("RM::installSnapshot(" + snap.position + ") " + snap.data.size() + " items");
+    }
+
+    // Must be deterministic: every replica runs it on the same state
+    private Object apply(ReplicatedCommand cmd) throws RemoteException {
+        Object[] a = cmd.args;
+        switch (cmd.method) {
+            case "addFlight":         return super.addFlight(i(a,0), i(a,1), i(a,2));
+            case "addCars":           return super.addCars(s(a,0), i(a,1), i(a,2));
+            case "addRooms":          return super.addRooms(s(a,0), i(a,1), i(a,2));
+            case "deleteFlight":      return super.deleteFlight(i(a,0));
+            case "deleteCars":        return super.deleteCars(s(a,0));
+            case "deleteRooms":       return super.deleteRooms(s(a,0));
+            case "newCustomerID":     return super.newCustomer(i(a,0));
+            case "deleteCustomer":    return super.deleteCustomer(i(a,0));
+            case "removeReservation": return super.removeReservation(i(a,0), s(a,1), i(a,2));
+            case "removeReservations": return super.removeReservations(s(a,0), (int[]) a[1], (int[]) a[2]);
+            case "releaseReservations": return super.releaseReservations(i(a,0), (String[]) a[1], (int[]) a[2]);
+            case "cancelReservations": return super.cancelReservations(i(a,0), strings(a[1]));
+            case "reserveFlight":     return super.reserveFlight(i(a,0), i(a,1));
+            case "reserveCar":        return super.reserveCar(i(a,0), s(a,1));
+            case "reserveRoom":       return super.reserveRoom(i(a,0), s(a,1));
+            case "markHot":           return super.markHot(s(a,0));
+            case "importItem":        return super.importItem(s(a,0), s(a,1), i(a,2), i(a,3), i(a,4));
+            case "dropItem":          return super.dropItem(s(a,0));
+            default:
+                throw new IllegalArgumentException("Unknown replicated method: " + cmd.method);
+        }
+    }
+
+    private static int i(Object[] a, int idx) { return ((Number) a[idx]).intValue(); }
+    @SuppressWarnings("unchecked")
+    private static Vector<String> strings(Object o) { return (Vector<String>) o; }
+    private static String s(Object[] a, int idx) { return String.valueOf(a[idx]); }
+
+    @Override
+    public boolean addFlight(int flightNum, int flightSeats, int flightPrice) throws RemoteException {
+        return (Boolean) submit("addFlight", flightNum, flightSeats, flightPrice);
+    }
+
+    @Override
+    public boolean addCars(String location, int count, int price) throws RemoteException {
+        return (Boolean) submit("addCars", location, count, price);
+    }
+
+    @Override
+    public boolean addRooms(String location, int count, int price) throws RemoteException {
+        return (Boolean) submit("addRooms", location, count, price);
+    }
+
+    @Override
+    public boolean deleteFlight(int flightNum) throws RemoteException {
+        return (Boolean) submit("deleteFlight", flightNum);
+    }
+
+    @Override
+    public boolean deleteCars(String location) throws RemoteException {
+        return (Boolean) submit("deleteCars", location);
+    }
+
+    @Override
+    public boolean deleteRooms(String location) throws RemoteException {
+        return (Boolean) submit("deleteRooms", location);
+    }
+
+    // The ID is picked here, before ordering, so every replica creates the same customer
+    @Override
+    public int newCustomer() throws RemoteException {
+        while (true) {
+            int cid = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+            if (newCustomer(cid)) {
+                return cid;
+            }
+        }
+    }
+
+    @Override
+    public boolean newCustomer(int customerID) throws RemoteException {
+        return (Boolean) submit("newCustomerID", customerID);
+    }
+
+    @Override
+    public boolean deleteCustomer(int customerID) throws RemoteException {
+        return (Boolean) submit("deleteCustomer", customerID);
+    }
+
+    @Override
+    public boolean removeReservation(int customerID, String reserveditemKey, int reserveditemCount) throws RemoteException {
+        return (Boolean) submit("removeReservation", customerID, reserveditemKey, reserveditemCount);
+    }
+
+    @Override
+    public boolean removeReservations(String key, int[] customerIDs, int[] counts) {
+        return (Boolean) submitUnchecked("removeReservations", key, customerIDs, counts);
+    }
+
+    @Override
+    public boolean releaseReservations(int customerID, String[] keys, int[] counts) {
+        return (Boolean) submitUnchecked("releaseReservations", customerID, keys, counts);
+    }
+
+    @Override
+    public boolean cancelReservations(int customerID, Vector<String> itemKeys) throws RemoteException {
+        return (Boolean) submit("cancelReservations", customerID, new Vector<>(itemKeys));
+    }
+
+    @Override
+    public boolean reserveFlight(int customerID, int flightNum) throws RemoteException {
+        return (Boolean) submit("reserveFlight", customerID, flightNum);
+    }
+
+    @Override
+    public boolean reserveCar(int customerID, String location) throws RemoteException {
+        return (Boolean) submit("reserveCar", customerID, location);
+    }
+
+    @Override
+    public boolean reserveRoom(int customerID, String location) throws RemoteException {
+        return (Boolean) submit("reserveRoom", customerID, location);
+    }
+
+    @Override
+    public boolean markHot(String key) {
+        return (Boolean) submitUnchecked("markHot", key);
+    }
+
+    @Override
+    public boolean importItem(String key, String location, int count, int price, int reserved) {
+        return (Boolean) submitUnchecked("importItem", key, location, count, price, reserved);
+    }
+
+    @Override
+    public boolean dropItem(String key) {
+        return (Boolean) submitUnchecked("dropItem", key);
+    }
+
+    private Object submitUnchecked(String method, Object... args) {
+        try {
+            return submit(method, args);
+        } catch (RemoteException e) {
+            throw new IllegalStateException(e.getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package Server.Replication;
+
+import Server.Common.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures replicated RM throughput over the in-process broadcast, for 3 and 5
+ * replicas by default.
+ *
+ * Usage: java Server.Replication.ReplicationBenchmark [threads [seconds [readPercent [replicas...]]]]
+ */
+public class ReplicationBenchmark {
+
+    private static final int FLIGHTS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int readPct = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int[] sizes = {3, 5};
+        if (args.length > 3) {
+            sizes = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) sizes[i - 3] = Integer.parseInt(args[i]);
+        }
+
+        Trace.setVerbose(false);
+        System.out.println("threads=" + threads + " seconds=" + seconds + " reads=" + readPct + "%");
+        for (int n : sizes) {
+            run(n, threads, seconds, readPct);
+        }
+    }
+
+    private static void run(int replicas, int threads, int seconds, int readPct) throws Exception {
+        LocalTotalOrderBroadcast.Group group = new LocalTotalOrderBroadcast.Group();
+        List<ReplicatedResourceManager> rms = new ArrayList<>();
+        for (int i = 0; i < replicas; i++) {
+            rms.add(new ReplicatedResourceManager("Flights", "r" + i, group.join()));
+        }
+        for (int f = 0; f < FLIGHTS; f++) {
+            rms.get(0).addFlight(f, Integer.MAX_VALUE / 2, 100 + f);
+        }
+
+        LongAdder reads = new LongAdder();
+        LongAdder writes = new LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            // clients are spread over the replicas, as the Middleware would
+            ReplicatedResourceManager rm = rms.get(t % replicas);
+            Thread w = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < end) {
+                        int f = rnd.nextInt(FLIGHTS);
+                        if (rnd.nextInt(100) < readPct) {
+                            rm.queryFlight(f);
+                            reads.increment();
+                        } else {
+                            rm.reserveFlight(1, f);
+                            writes.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "bench-" + t);
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) w.join();
+
+        long r = reads.sum(), w = writes.sum();
+        System.out.printf("replicas=%d  ops/s=%,d  (reads/s=%,d  writes/s=%,d)  applied=%s%n",
+                replicas, (r + w) / seconds, r / seconds, w / seconds, positions(rms));
+        for (ReplicatedResourceManager rm : rms) rm.shutdown();
+    }
+
+    private static String positions(List<ReplicatedResourceManager> rms) {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < rms.size(); i++) {
+            if (i > 0) b.append(",");
+            b.append(rms.get(i).appliedPosition());
+        }
+        return b.append("]").toString();
+    }
+}
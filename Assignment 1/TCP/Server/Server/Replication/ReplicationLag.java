@@ -0,0 +1,13 @@
+package Server.Replication;
+
+// Replication lag of a log-shipping primary or standby, exposed through "replicationStatus"
+public interface ReplicationLag {
+
+    String role();
+
+    /** Log entries appended by the primary but not yet applied by the standby. */
+    long lagEntries();
+
+    /** Age of the oldest such entry, in milliseconds (0 when caught up). */
+    long lagMillis();
+}
@@ -0,0 +1,35 @@
+package Server.Replication;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one phase of a replicated command:
+ * <ul>
+ *   <li>{@code order}: broadcastTOMsg, until the group (Paxos, or the log-shipping primary) has ordered it</li>
+ *   <li>{@code await}: from being ordered until the local replica has applied it</li>
+ *   <li>{@code apply}: running the command on the applier thread, on every replica</li>
+ * </ul>
+ * The Paxos rounds themselves run inside comp512p2.jar and are not visible from here.
+ */
+@Label("Replication Phase")
+@Category({"Reservations", "Replication"})
+@Description("Ordering, waiting for, or applying a replicated RM command")
+@StackTrace(false)
+public class ReplicationPhaseEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Replica")
+    public String replica;
+
+    @Label("Log Position")
+    public long position;
+}
@@ -0,0 +1,9 @@
+package Server.Replication;
+
+import java.util.concurrent.CompletableFuture;
+
+// Local marker put into the primary's own log; the applier answers it with a snapshot
+// taken exactly between the entries before and after it
+class SnapshotRequest {
+    final CompletableFuture<LogSnapshot> snapshot = new CompletableFuture<>();
+}
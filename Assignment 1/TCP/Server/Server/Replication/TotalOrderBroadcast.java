@@ -0,0 +1,18 @@
+package Server.Replication;
+
+/**
+ * Total-order broadcast as provided by the Assignment 2 Paxos module
+ * ({@code comp512st.paxos.Paxos}): every value passed to
+ * {@link #broadcastTOMsg} is returned by {@link #acceptTOMsg} on every member
+ * of the group, in the same order.
+ */
+public interface TotalOrderBroadcast {
+
+    /** Blocks until the value has been ordered (chosen) by the group. */
+    void broadcastTOMsg(Object value);
+
+    /** Blocks until the next value in the total order is available. */
+    Object acceptTOMsg() throws InterruptedException;
+
+    void shutdown();
+}
@@ -1,6 +1,12 @@
 package Server.TCP;
 
+import Server.Common.DispatchEvent;
+import Server.Common.MethodStats;
+import Server.Common.SlowLog;
+import Server.Common.SpanSink;
 import Server.Common.Trace;
+import Server.Common.TraceContext;
+import Server.Middleware.AdmissionControl;
 import Server.Middleware.Middleware;
 
 import java.io.*;
@@ -9,14 +15,25 @@ import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Vector;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TCPMiddleware {
 
     private static volatile boolean running = true;
 
+    // Connections beyond this are answered "Overloaded" and closed rather than given a thread
+    private static final int MAX_CONNECTIONS = Integer.getInteger("mw.maxConnections", 1024);
+
     private final Middleware mw;
     private final int listenPort;
     private ServerSocket serverSocket;
+    // null with -Dmw.admission=false: every request runs as soon as it is read
+    private final AdmissionControl admission =
+            Boolean.parseBoolean(System.getProperty("mw.admission", "true")) ? new AdmissionControl() : null;
+    private final AtomicInteger connections = new AtomicInteger();
 
     public TCPMiddleware(int listenPort,
                          String flightHost, int flightPort,
@@ -26,29 +43,25 @@ public class TCPMiddleware {
         this.mw = new Middleware("Middleware", flightHost, flightPort, carHost, carPort, roomHost, roomPort);
     }
 
+    public TCPMiddleware(int listenPort, List<String> flightRMs, List<String> carRMs, List<String> roomRMs) throws IOException {
+        this.listenPort = listenPort;
+        this.mw = new Middleware("Middleware", flightRMs, carRMs, roomRMs);
+    }
+
     public static void main(String[] args) {
         if (args.length < 4) {
-            System.err.println("Usage: java Server.TCP.TCPMiddleware <listen_port> <flightHost:port> <carHost:port> <roomHost:port>");
+            System.err.println("Usage: java Server.TCP.TCPMiddleware <listen_port> <flightHost:port[,host:port...]> <carHost:port[,...]> <roomHost:port[,...]>");
             System.exit(1);
         }
 
         try {
             int listen = Integer.parseInt(args[0]);
 
-            String[] f = args[1].split(":", 2);
-            String[] c = args[2].split(":", 2);
-            String[] r = args[3].split(":", 2);
-
-            String flightHost = f[0];
-            int flightPort = Integer.parseInt(f[1]);
-
-            String carHost = c[0];
-            int carPort = Integer.parseInt(c[1]);
-
-            String roomHost = r[0];
-            int roomPort = Integer.parseInt(r[1]);
+            List<String> flights = Arrays.asList(args[1].split(","));
+            List<String> cars    = Arrays.asList(args[2].split(","));
+            List<String> rooms   = Arrays.asList(args[3].split(","));
 
-            TCPMiddleware server = new TCPMiddleware(listen, flightHost, flightPort, carHost, carPort, roomHost, roomPort);
+            TCPMiddleware server = new TCPMiddleware(listen, flights, cars, rooms);
 
             Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "TCPMiddleware-ShutdownHook"));
 
@@ -63,12 +76,22 @@ public class TCPMiddleware {
     public void start() throws IOException {
         serverSocket = new ServerSocket(listenPort);
         System.out.println("Middleware listening on :" + listenPort);
+        MethodStats.startDump("TCPMiddleware:" + listenPort);
+        SpanSink.start("mw:" + listenPort);
+        SlowLog.start("mw:" + listenPort);
 
         while (running) {
             try {
                 Socket s = serverSocket.accept();
+                if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+                    connections.decrementAndGet();
+                    refuse(s);
+                    continue;
+                }
                 s.setKeepAlive(true);
-                new Thread(new ClientHandler(s, mw), "ClientHandler-" + s.getRemoteSocketAddress()).start();
+                // large replies (bills) span several segments; don't let Nagle hold back the last one
+                s.setTcpNoDelay(true);
+                new Thread(new ClientHandler(s, this, "mw:" + listenPort), "ClientHandler-" + s.getRemoteSocketAddress()).start();
             } catch (IOException e) {
                 if (running) {
                     Trace.warn("Accept failed: " + e.getMessage());
@@ -77,6 +100,13 @@ public class TCPMiddleware {
         }
     }
 
+    private static void refuse(Socket s) {
+        try (Socket closing = s) {
+            closing.getOutputStream().write((JsonUtil.failed("Overloaded, too many connections") + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {
+        }
+    }
+
     public void stop() {
         running = false;
         System.out.println("Shutting down Middleware ...");
@@ -91,11 +121,23 @@ public class TCPMiddleware {
 
     private static class ClientHandler implements Runnable {
         private final Socket socket;
+        private final TCPMiddleware server;
         private final Middleware mw;
+        private final AdmissionControl admission;
+        private final String tag;
+
+        // responses are built here and copied to the socket in chunks; both are reused per connection,
+        // but one large bill shouldn't pin its buffer for the connection's lifetime
+        private static final int RESP_KEEP = 64 * 1024;
+        private final StringBuilder resp = new StringBuilder(256);
+        private final char[] chunk = new char[8192];
 
-        ClientHandler(Socket socket, Middleware mw) {
+        ClientHandler(Socket socket, TCPMiddleware server, String tag) {
             this.socket = socket;
-            this.mw = mw;
+            this.server = server;
+            this.mw = server.mw;
+            this.admission = server.admission;
+            this.tag = tag;
         }
 
         @Override
@@ -105,6 +147,7 @@ public class TCPMiddleware {
 
                 String line;
                 while ((line = in.readLine()) != null) {
+                    long received = System.nanoTime();
                     Request req;
                     try {
                         req = Request.parse(line);
@@ -113,29 +156,85 @@ public class TCPMiddleware {
                         continue;
                     }
 
-                    Object result;
+                    long parsed = System.nanoTime();
+                    boolean admitted = false;
+                    if (admission != null && !req.method.equals("stats")) {
+                        long left = req.timeout < 0 ? -1 : received + req.timeout * 1_000_000L - parsed;
+                        try {
+                            admission.acquire(AdmissionControl.priorityOf(req.method), left);
+                            admitted = true;
+                        } catch (AdmissionControl.RejectedException e) {
+                            MethodStats.record(req.method, received, false);
+                            writeFailed(out, "Overloaded, retry later");
+                            continue;
+                        } catch (InterruptedException e) {
+                            // being shut down: answer this request and stop serving the connection
+                            Thread.currentThread().interrupt();
+                            MethodStats.record(req.method, received, false);
+                            writeFailed(out, "Server shutting down");
+                            break;
+                        }
+                    }
+
                     boolean ok = true;
                     String errMsg = null;
+                    long start = System.nanoTime();
+                    long startMicros = SpanSink.nowMicros();
+                    // RM calls made for this request carry its trace downstream and add up their time
+                    TraceContext span = new TraceContext(req.trace, req.trace == null ? null : TraceContext.newId(),
+                            req.timeout, received);
+                    TraceContext outer = TraceContext.enter(span);
+                    DispatchEvent event = new DispatchEvent();
+                    event.begin();
 
                     try {
-                        result = dispatch(req);
+                        // the client has given up already; do not start work nobody will see
+                        if (span.expired()) throw new TimeoutException("Deadline exceeded");
+                        Object result = dispatch(req);
+                        resp.setLength(0);
+                        JsonUtil.success(resp, result);
                     } catch (Exception e) {
                         ok = false;
-                        result = null;
                         errMsg = e.getMessage() == null ? "Operation failed" : e.getMessage();
+                    } finally {
+                        TraceContext.restore(outer);
+                        if (admitted) admission.release(System.nanoTime() - start);
+                    }
+                    if (span.traced()) {
+                        SpanSink.record(span.traceId, span.spanId, req.parent, req.method,
+                                startMicros, SpanSink.nowMicros() - startMicros, ok);
+                    }
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.server = tag;
+                        event.method = req.method;
+                        event.traceId = req.trace;
+                        event.ok = ok;
+                        event.commit();
+                    }
+                    // queueing and encoding are included: a streamed bill is produced while it is encoded
+                    if (!req.method.equals("stats")) {
+                        MethodStats.record(req.method, received, ok);
                     }
 
+                    long executed = System.nanoTime();
                     if (ok) {
-                        writeOk(out, result);
+                        writeOk(out);
                     } else {
                         writeFailed(out, errMsg);
                     }
+                    long written = System.nanoTime();
+                    if (SlowLog.isSlow(written - received)) {
+                        SlowLog.record(req.method, req.args, req.trace, ok, parsed - received, start - parsed,
+                                executed - start, span.downstreamNanos(), span.downstreamCalls(), written - executed);
+                    }
                 }
 
             } catch (IOException e) {
                 // connection closed or error; may need to handle later
             } finally {
                 try { socket.close(); } catch (IOException ignored) {}
+                server.connections.decrementAndGet();
             }
         }
 
@@ -144,6 +243,16 @@ public class TCPMiddleware {
             Object[] a = req.args;
 
             switch (m) {
+                case "stats": {
+                    // [reset?] -> per-method counts and latency percentiles, including this
+                    // Middleware's calls to each RM ("Flights/reserveItem", ...), then each RM's hot keys
+                    boolean reset = a.length > 0 && toBool(a,0);
+                    Vector<String> lines = MethodStats.snapshot(reset);
+                    if (admission != null) lines.addAll(admission.snapshot());
+                    lines.addAll(mw.hotKeys(reset));
+                    return lines;
+                }
+
                 case "addFlight":
                     return mw.addFlight(toInt(a,0), toInt(a,1), toInt(a,2));
                 case "deleteFlight":
@@ -171,14 +280,45 @@ public class TCPMiddleware {
                 case "queryRoomsPrice":
                     return mw.queryRoomsPrice(toStr(a,0));
 
+                case "queryRange":
+                    // [type, minAvailable, maxPrice] -> [location, available, price, ...] cheapest first
+                    return mw.queryRange(toStr(a,0), toInt(a,1), toInt(a,2));
+                case "queryCheapest":
+                    // [type, k, minAvailable]
+                    return mw.queryCheapest(toStr(a,0), toInt(a,1), toInt(a,2));
+                case "queryLocations":
+                    // [limit, prefix] -> locations with cars or rooms, in name order; the prefix
+                    // goes last because the arg parser drops an empty string
+                    return mw.queryLocations(a.length > 1 ? toStr(a,1) : "", toInt(a,0));
+                case "searchBundle":
+                    // [legs[], location, car, room, budget], each leg "12|15|20" -> [total, key, price, ...] or []
+                    if (a.length < 5) {
+                        throw new IllegalArgumentException("searchBundle requires 5 args: legs[], location, car, room, budget");
+                    }
+                    return mw.searchBundle(toStringVector(a[0]), toStr(a,1), toBool(a,2), toBool(a,3), toInt(a,4));
+
+                case "cancelFlight":
+                    return mw.cancelFlight(toInt(a,0));
+                case "cancelCars":
+                    return mw.cancelCars(toStr(a,0));
+                case "cancelRooms":
+                    return mw.cancelRooms(toStr(a,0));
+
                 case "newCustomer":
                     return mw.newCustomer();
                 case "newCustomerID":
                     return mw.newCustomer(toInt(a,0));
                 case "deleteCustomer":
                     return mw.deleteCustomer(toInt(a,0));
-                case "queryCustomer":
-                    return mw.queryCustomerInfo(toInt(a,0));
+                case "cancelReservation":
+                    return mw.cancelReservation(toInt(a,0), toStr(a,1));
+                case "cancelReservations":
+                    return mw.cancelReservations(toInt(a,0), toStringVector(a[1]));
+                case "queryCustomer": {
+                    // the bill is written into the response buffer when the reply is encoded
+                    int customerID = toInt(a,0);
+                    return (JsonUtil.Streamed) w -> mw.appendBill(customerID, w);
+                }
 
                 case "reserveFlight":
                     return mw.reserveFlight(toInt(a,0), toInt(a,1));
@@ -203,6 +343,11 @@ public class TCPMiddleware {
                 case "getName":
                     return mw.getName();
 
+                case "addResourceManager":
+                    // [type, host, port] or [type, "primary:port|replica:port|..."]
+                    if (a.length == 2) return mw.addResourceManager(toStr(a,0), toStr(a,1));
+                    return mw.addResourceManager(toStr(a,0), toStr(a,1), toInt(a,2));
+
                 default:
                     throw new IllegalArgumentException("Unknown method: " + m);
             }
@@ -240,11 +385,19 @@ public class TCPMiddleware {
             return v;
         }
 
-        private static void writeOk(BufferedWriter out, Object response) throws IOException {
-            String respJson = JsonUtil.success(response);
-            out.write(respJson);
+        private void writeOk(BufferedWriter out) throws IOException {
+            for (int p = 0; p < resp.length(); p += chunk.length) {
+                int n = Math.min(chunk.length, resp.length() - p);
+                resp.getChars(p, p + n, chunk, 0);
+                out.write(chunk, 0, n);
+            }
             out.write("\n");
             out.flush();
+            if (resp.capacity() > RESP_KEEP) {
+                resp.setLength(0);
+                resp.trimToSize();
+                resp.ensureCapacity(256);
+            }
         }
 
         private static void writeFailed(BufferedWriter out, String message) throws IOException {
@@ -262,10 +415,18 @@ public class TCPMiddleware {
     private static class Request {
         final String method;
         final Object[] args;
+        // trace ID and the caller's span ID, when the client sent them
+        final String trace;
+        final String parent;
+        // milliseconds the client will wait for the answer, or -1 if it did not say
+        final long timeout;
 
-        private Request(String method, Object[] args) {
+        private Request(String method, Object[] args, String trace, String parent, long timeout) {
             this.method = method;
             this.args = args;
+            this.trace = trace;
+            this.parent = parent;
+            this.timeout = timeout;
         }
 
         static Request parse(String s) {
@@ -275,15 +436,41 @@ public class TCPMiddleware {
             Object[] args = JsonUtil.extractArrayField(noWS, "args");
 
             if (method == null || args == null) throw new IllegalArgumentException("Malformed JSON");
-            return new Request(method, args);
+            return new Request(method, args, JsonUtil.extractStringField(noWS, "trace"), JsonUtil.extractStringField(noWS, "parent"),
+                    JsonUtil.extractLongField(noWS, "timeout", -1));
         }
     }
 
     private static class JsonUtil {
-        private static String esc(String s) {
-            StringBuilder b = new StringBuilder();
-            for (int i = 0; i < s.length(); i++) {
-                char c = s.charAt(i);
+
+        // A string response written piecewise into the reply instead of being built up front
+        interface Streamed {
+            void writeTo(Appendable out) throws IOException;
+        }
+
+        // Appendable that JSON-escapes everything written through it
+        private static final class Escaper implements Appendable {
+            private final StringBuilder b;
+
+            Escaper(StringBuilder b) {
+                this.b = b;
+            }
+
+            @Override
+            public Appendable append(CharSequence s) {
+                return append(s, 0, s.length());
+            }
+
+            @Override
+            public Appendable append(CharSequence s, int start, int end) {
+                for (int i = start; i < end; i++) {
+                    append(s.charAt(i));
+                }
+                return this;
+            }
+
+            @Override
+            public Appendable append(char c) {
                 switch (c) {
                     case '\\': b.append("\\\\"); break;
                     case '\"': b.append("\\\""); break;
@@ -297,13 +484,26 @@ public class TCPMiddleware {
                             b.append(c);
                         }
                 }
+                return this;
             }
+        }
+
+        private static String esc(String s) {
+            StringBuilder b = new StringBuilder();
+            new Escaper(b).append(s);
             return b.toString();
         }
 
-        static String success(Object response) {
-            String respValue = encodeValue(response);
-            return "{\"status\":\"ok\",\"response\":" + respValue + "}";
+        static void success(StringBuilder b, Object response) throws IOException {
+            b.append("{\"status\":\"ok\",\"response\":");
+            if (response instanceof Streamed) {
+                b.append('"');
+                ((Streamed) response).writeTo(new Escaper(b));
+                b.append('"');
+            } else {
+                b.append(encodeValue(response));
+            }
+            b.append('}');
         }
         static String failed(String message) {
             return "{\"status\":\"failed\",\"message\":\"" + esc(message == null ? "Operation failed" : message) + "\"}";
@@ -354,6 +554,16 @@ public class TCPMiddleware {
             return null;
         }
 
+        static long extractLongField(String json, String field, long dflt) {
+            String needle = "\"" + field + "\":";
+            int i = json.indexOf(needle);
+            if (i < 0) return dflt;
+            int p = i + needle.length();
+            int start = p;
+            while (p < json.length() && (json.charAt(p) == '-' || Character.isDigit(json.charAt(p)))) p++;
+            try { return Long.parseLong(json.substring(start, p)); } catch (NumberFormatException e) { return dflt; }
+        }
+
         static Object[] extractArrayField(String json, String field) {
             String needle = "\"" + field + "\":[";
             int i = json.indexOf(needle);
@@ -1,6 +1,7 @@
 package Server.TCP;
 
 import Server.Common.*;
+import Server.Replication.*;
 
 import java.io.*;
 import java.net.ServerSocket;
@@ -13,17 +14,57 @@ public class TCPResourceManager {
     private final ResourceManager rm;
 
     public TCPResourceManager(String name) {
-        this.rm = new ResourceManager(name);
+        this(new ResourceManager(name));
     }
 
+    public TCPResourceManager(ResourceManager rm) {
+        this.rm = rm;
+    }
+
+    // Usage: TCPResourceManager <name> <port> [<paxosSelf host:port> <paxosGroup host:port,host:port,...>]
+    //        TCPResourceManager <name> <port> primary <shipPort>
+    //        TCPResourceManager <name> <port> standby <primaryHost:shipPort>
+    // With the Paxos arguments the RM runs as one replica of a replicated group; with
+    // primary/standby it ships its mutation log to (or follows) a hot standby.
     public static void main(String[] args) {
         String name = (args.length > 0) ? args[0] : "Server";
         int port = (args.length > 1) ? parseIntOr(args[1], 5001) : 5001;
 
-        TCPResourceManager server = new TCPResourceManager(name);
+        TCPResourceManager server;
+        if (args.length > 3 && (args[2].equals("primary") || args[2].equals("standby"))) {
+            try {
+                TotalOrderBroadcast log;
+                if (args[2].equals("primary")) {
+                    log = new LogShippingPrimary(Integer.parseInt(args[3]));
+                } else {
+                    String[] hp = args[3].split(":", 2);
+                    log = new LogShippingStandby(hp[0], Integer.parseInt(hp[1]));
+                }
+                server = new TCPResourceManager(new ReplicatedResourceManager(name, args[2], log));
+            } catch (Exception e) {
+                System.err.println("[TCPResourceManager:" + name + "] cannot start log shipping: " + e);
+                System.exit(1);
+                return;
+            }
+        } else if (args.length > 3) {
+            try {
+                TotalOrderBroadcast tob = new PaxosTotalOrderBroadcast(args[2], args[3].split(","));
+                server = new TCPResourceManager(new ReplicatedResourceManager(name, args[2], tob));
+                System.out.println("[TCPResourceManager:" + name + "] replica " + args[2] + " of " + args[3]);
+            } catch (Exception e) {
+                System.err.println("[TCPResourceManager:" + name + "] cannot start Paxos (is comp512p2.jar on the classpath?): " + e);
+                System.exit(1);
+                return;
+            }
+        } else {
+            server = new TCPResourceManager(name);
+        }
 
         try (ServerSocket ss = new ServerSocket(port)) {
             System.out.println("[TCPResourceManager:" + name + "] listening on :" + port);
+            MethodStats.startDump("TCPResourceManager:" + name);
+            SpanSink.start("rm:" + name);
+            SlowLog.start("rm:" + name);
             while (true) {
                 Socket s = ss.accept();
                 s.setTcpNoDelay(true);
@@ -58,16 +99,36 @@ public class TCPResourceManager {
                 String line;
                 while ((line = in.readLine()) != null) {
                     String resp;
+                    long start = System.nanoTime();
+                    long startMicros = SpanSink.nowMicros();
+                    long parsed = start;
+                    boolean ok = true;
+                    Request req = null;
+                    DispatchEvent event = new DispatchEvent();
+                    event.begin();
                     try {
-                        Request req = Request.parse(line);
+                        req = Request.parse(line);
+                        parsed = System.nanoTime();
+                        // the Middleware sends what is left of the client's timeout; none left, no work
+                        if (req.timeout == 0) throw new IllegalStateException("Deadline exceeded");
+                        checkFresh(req);
                         Object r = dispatch(req);
                         resp = Json.success(r);
                     } catch (Exception ex) {
+                        ok = false;
                         resp = Json.failed(ex.getMessage() == null ? "Operation failed" : ex.getMessage());
                     }
+                    long executed = System.nanoTime();
+                    record(req, start, startMicros, event, ok);
                     out.write(resp);
                     out.write("\n");
                     out.flush();
+                    long written = System.nanoTime();
+                    if (req != null && SlowLog.isSlow(written - start)) {
+                        // the RM makes no downstream calls; nothing waits between parse and start
+                        SlowLog.record(req.method, req.args, req.trace, ok, parsed - start, 0,
+                                executed - parsed, 0, 0, written - executed);
+                    }
                 }
             } catch (IOException ignored) {
             } finally {
@@ -75,6 +136,73 @@ public class TCPResourceManager {
             }
         }
 
+        private void record(Request req, long start, long startMicros, DispatchEvent event, boolean ok) {
+            if (req == null || req.method.equals("stats")) return;
+            MethodStats.record(req.method, start, ok);
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = "rm:" + tag;
+                event.method = req.method;
+                event.traceId = req.trace;
+                event.ok = ok;
+                event.commit();
+            }
+            if (req.trace != null) {
+                SpanSink.record(req.trace, TraceContext.newId(), req.parent, req.method,
+                        startMicros, SpanSink.nowMicros() - startMicros, ok);
+            }
+        }
+
+        // Follower reads: the Middleware tags a read with the log position this replica
+        // must have reached; a replica that is further behind refuses it
+        private void checkFresh(Request req) {
+            if (req.minPosition <= 0 || !(rm instanceof ReplicatedResourceManager)) return;
+            long applied = ((ReplicatedResourceManager) rm).appliedPosition();
+            if (applied < req.minPosition) {
+                throw new IllegalStateException("stale replica: applied " + applied + " < " + req.minPosition);
+            }
+        }
+
+        private Vector<Object> replicaStatus() {
+            Vector<Object> v = new Vector<>();
+            if (rm instanceof ReplicatedResourceManager) {
+                ReplicatedResourceManager r = (ReplicatedResourceManager) rm;
+                v.add(r.appliedPosition());
+                v.add(r.lastAppliedMillis());
+            } else {
+                v.add(0L);
+                v.add(System.currentTimeMillis());
+            }
+            return v;
+        }
+
+        private ReplicationLag logShipping() {
+            if (rm instanceof ReplicatedResourceManager) {
+                TotalOrderBroadcast tob = ((ReplicatedResourceManager) rm).getBroadcast();
+                if (tob instanceof ReplicationLag) return (ReplicationLag) tob;
+            }
+            return null;
+        }
+
+        private Vector<Object> replicationStatus() {
+            Vector<Object> v = new Vector<>();
+            ReplicationLag lag = logShipping();
+            v.add(lag == null ? "none" : lag.role());
+            v.add(lag == null ? 0L : lag.lagEntries());
+            v.add(lag == null ? 0L : lag.lagMillis());
+            return v;
+        }
+
+        // Turns a hot standby into the primary after the old primary failed
+        private boolean promote() {
+            ReplicationLag lag = logShipping();
+            if (!(lag instanceof LogShippingStandby)) {
+                throw new IllegalStateException("not a standby");
+            }
+            ((LogShippingStandby) lag).promote();
+            return true;
+        }
+
         private Object dispatch(Request req) throws Exception {
             String m = req.method;
             Object[] a = req.args;
@@ -82,6 +210,22 @@ public class TCPResourceManager {
             switch (m) {
                 case "getName":
                     return rm.getName();
+                case "stats": {
+                    // [reset?] -> per-method call counts and latency percentiles, then the hot keys
+                    boolean reset = a.length > 0 && Boolean.TRUE.equals(a[0]);
+                    Vector<String> lines = MethodStats.snapshot(reset);
+                    lines.addAll(rm.hotKeys(reset));
+                    return lines;
+                }
+                case "hotKeys":
+                    // [reset?] -> most accessed keys with estimated counts
+                    return rm.hotKeys(a.length > 0 && Boolean.TRUE.equals(a[0]));
+                case "replicationStatus":
+                    return replicationStatus(); // [role, lagEntries, lagMillis]
+                case "promote":
+                    return promote();
+                case "replicaStatus":
+                    return replicaStatus(); // [appliedPosition, lastAppliedMillis]
 
                 // flights
                 case "addFlight":
@@ -120,6 +264,54 @@ public class TCPResourceManager {
                     return rm.reserveRoom(i(a,0), s(a,1)); // customerID ignored by RM
                 case "removeReservation":
                     return rm.removeReservation(i(a,0), s(a,1), i(a,2));
+                case "releaseReservations": {
+                    // [customerID, key, count, key, count, ...]
+                    int n = (a.length - 1) / 2;
+                    String[] keys = new String[n];
+                    int[] counts = new int[n];
+                    for (int k = 0; k < n; k++) {
+                        keys[k] = s(a, 1 + 2 * k);
+                        counts[k] = i(a, 2 + 2 * k);
+                    }
+                    return rm.releaseReservations(i(a,0), keys, counts);
+                }
+                case "removeReservations": {
+                    // [key, customerID, count, customerID, count, ...]
+                    int n = (a.length - 1) / 2;
+                    int[] customerIDs = new int[n];
+                    int[] counts = new int[n];
+                    for (int k = 0; k < n; k++) {
+                        customerIDs[k] = i(a, 1 + 2 * k);
+                        counts[k] = i(a, 2 + 2 * k);
+                    }
+                    return rm.removeReservations(s(a,0), customerIDs, counts);
+                }
+                case "queryItems": {
+                    // [key, key, ...] -> [available, price, ...]
+                    Vector<String> keys = new Vector<>();
+                    for (Object k : a) keys.add(String.valueOf(k));
+                    return rm.queryItems(keys);
+                }
+                case "queryRange":
+                    return rm.queryRange(s(a,0), i(a,1), i(a,2));
+                case "queryCheapest":
+                    return rm.queryCheapest(s(a,0), i(a,1), i(a,2));
+                case "queryLocations":
+                    // [limit, prefix]; the prefix goes last because an empty string arg is dropped
+                    return rm.queryLocations(a.length > 1 ? s(a,1) : "", i(a,0));
+                case "markHot":
+                    return rm.markHot(s(a,0)); // e.g. "flight-101", switches it to sharded inventory
+
+                // moving items between RMs of the same type (Middleware rebalancing)
+                case "listKeys":
+                    return rm.listKeys();
+                case "exportItem":
+                    return rm.exportItem(s(a,0));
+                case "importItem":
+                    return rm.importItem(s(a,0), s(a,1), i(a,2), i(a,3), i(a,4));
+                case "dropItem":
+                    return rm.dropItem(s(a,0));
+
                 case "bundle":
                     throw new IllegalArgumentException("bundle not supported at RM");
 
@@ -136,14 +328,28 @@ public class TCPResourceManager {
     private static final class Request {
         final String method;
         final Object[] args;
+        final long minPosition;
+        // trace ID and the Middleware's span for this call, when it sent them
+        final String trace;
+        final String parent;
+        // milliseconds the caller will still wait, or -1 if it did not say
+        final long timeout;
 
-        private Request(String m, Object[] a) { this.method = m; this.args = a; }
+        private Request(String m, Object[] a, long minPosition, String trace, String parent, long timeout) {
+            this.method = m;
+            this.args = a;
+            this.minPosition = minPosition;
+            this.trace = trace;
+            this.parent = parent;
+            this.timeout = timeout;
+        }
 
         static Request parse(String s) {
             String method = Json.getString(s, "method");
             Object[] args = Json.getArray(s, "args");
             if (method == null || args == null) throw new IllegalArgumentException("Malformed JSON");
-            return new Request(method, args);
+            return new Request(method, args, Json.getLong(s, "minPosition", 0), Json.getString(s, "trace"), Json.getString(s, "parent"),
+                    Json.getLong(s, "timeout", -1));
         }
     }
 
@@ -208,6 +414,16 @@ public class TCPResourceManager {
             return out.toString();
         }
 
+        static long getLong(String json, String field, long dflt) {
+            String needle = "\"" + field + "\":";
+            int i = json.indexOf(needle);
+            if (i < 0) return dflt;
+            int p = i + needle.length();
+            int start = p;
+            while (p < json.length() && (json.charAt(p) == '-' || Character.isDigit(json.charAt(p)))) p++;
+            try { return Long.parseLong(json.substring(start, p)); } catch (Exception e) { return dflt; }
+        }
+
         static Object[] getArray(String json, String field) {
             String needle = "\"" + field + "\":[";
             int i = json.indexOf(needle);
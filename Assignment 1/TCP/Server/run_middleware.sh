@@ -3,6 +3,10 @@
 #   ./run_middleware.sh <listen_port> <flightHost:port> <carHost:port> <roomHost:port>
 # Example:
 #   ./run_middleware.sh 5000 localhost:5101 localhost:5102 localhost:5103
+# Each RM argument may list several comma-separated endpoints; items of that type
+# are then partitioned over them by consistent hashing:
+#   ./run_middleware.sh 5000 localhost:5101,localhost:5111 localhost:5102 localhost:5103
+# JVM options (e.g. -Dmw.customers.dir=/var/mw) can be passed in JAVA_OPTS.
 
 set -euo pipefail
 
@@ -21,4 +25,4 @@ javac -d "$SCRIPT_DIR" \
 echo "[run_middleware] listening on :$LISTEN"
 echo "[run_middleware] RMs: Flights=$FLIGHT  Cars=$CAR  Rooms=$ROOM"
 
-exec java -cp "$SCRIPT_DIR" Server.TCP.TCPMiddleware "$LISTEN" "$FLIGHT" "$CAR" "$ROOM"
+exec java ${JAVA_OPTS:-} -cp "$SCRIPT_DIR" Server.TCP.TCPMiddleware "$LISTEN" "$FLIGHT" "$CAR" "$ROOM"
@@ -1,6 +1,11 @@
 #!/usr/bin/env bash
-# Usage: ./run_server.sh <name> <port>
+# Usage: ./run_server.sh <name> <port> [<paxosSelf> <paxosGroup> | primary <shipPort> | standby <host:shipPort>]
 # Example: ./run_server.sh Flights 5001
+# Replicated: CLASSPATH=/path/to/comp512p2.jar:/path/to/comp512p2 \
+#   ./run_server.sh Flights 5001 host1:4001 host1:4001,host2:4001,host3:4001
+# Hot standby (log shipping):
+#   ./run_server.sh Flights 5001 primary 6001          # ships its log on :6001
+#   ./run_server.sh Flights 5011 standby host1:6001    # follows it; send "promote" to take over
 
 set -euo pipefail
 
@@ -8,10 +13,10 @@ set -euo pipefail
 SCRIPT_DIR="$(cd -- "$(dirname "$0")" >/dev/null 2>&1 && pwd)"
 cd "$SCRIPT_DIR"
 
-javac -d . Server/Common/*.java Server/Interface/*.java Server/TCP/TCPResourceManager.java
+javac -d . Server/Common/*.java Server/Interface/*.java Server/Replication/*.java Server/TCP/TCPResourceManager.java
 
 echo "Launching TCP Resource Manager"
 echo "  $1 - resource manager name (Flights, Cars, Rooms, ...)"
 echo "  $2 - port to listen on"
 
-exec java Server.TCP.TCPResourceManager "$1" "$2"
+exec java -cp ".:${CLASSPATH:-}" Server.TCP.TCPResourceManager "$@"
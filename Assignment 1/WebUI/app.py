@@ -6,6 +6,8 @@ app = Flask(__name__)
 
 MIDDLEWARE_HOST = 'localhost'
 MIDDLEWARE_PORT = 5010
+# Seconds to wait for the middleware; also sent along so it can drop requests we gave up on
+REQUEST_TIMEOUT = 10
 
 def send_command_to_middleware(method, *args):
     """
@@ -22,14 +24,15 @@ def send_command_to_middleware(method, *args):
     try:
         request_data = {
             "method": method,
-            "args": list(args)
+            "args": list(args),
+            "timeout": REQUEST_TIMEOUT * 1000
         }
         json_request = json.dumps(request_data, separators=(',', ':'))
         
         print(f"\n[DEBUG] Sending: {json_request}")
         
         sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-        sock.settimeout(10)
+        sock.settimeout(REQUEST_TIMEOUT)
         
         sock.connect((MIDDLEWARE_HOST, MIDDLEWARE_PORT))
         